@@ -0,0 +1,193 @@
+package gr.tuc.dkap.cms.storm.benchmark;
+
+import gr.tuc.dkap.cms.storm.utils.CommentRowParser;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import gr.tuc.dkap.cms.storm.utils.LongLongHashMap;
+import gr.tuc.dkap.cms.storm.utils.MappedLineReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Offline accuracy versus memory harness: streams the user ids of a Comments.xml file, or zipf keys, through
+ * CountMinSketch and through an exact hash map, for a grid of sketch sizes, update modes and estimators, and prints
+ * one line per configuration with the memory of the table, the add throughput, the relative and absolute errors of
+ * the estimates of all keys, and the precision and recall of the top K. Arguments are key=value pairs:
+ * <ul>
+ * <li>file: a Comments.xml file to read the user ids from, instead of generating keys</li>
+ * <li>keys, keySpace, skew: the number, range and zipf exponent of generated keys (10000000, 1000000, 1.1)</li>
+ * <li>errors, confidences: the grid of sketch sizes, as in ERROR and ERROR_LIMIT of CMSTopology
+ * (0.01,0.001,0.0001 and 0.9,0.99,0.999)</li>
+ * <li>updateModes, estimators: the update modes and estimators to compare (all), skipping the estimators that a
+ * sketch does not support with an update mode</li>
+ * <li>hashScheme, topK, topKCapacity: as in the topology config (MIX64, 100, 1000)</li>
+ * </ul>
+ * Run with:
+ * <pre>
+ * mvn -Pbenchmark compile exec:java -Dexec.mainClass=gr.tuc.dkap.cms.storm.benchmark.AccuracyHarness \
+ *     -Dexec.args="file=Comments.xml errors=0.001,0.0001"
+ * </pre>
+ */
+public class AccuracyHarness {
+
+    private final long[] keys;
+    private final LongLongHashMap exact = new LongLongHashMap(); // key -> exact count
+    private final long[] distinctKeys;
+    private final long[] exactCounts; // exact count of each distinct key
+    private final long topKThreshold; // exact count of the K-th most frequent key
+    private final int topK;
+
+    /**
+     * @param keys the stream of keys
+     * @param topK the number of top K results to compare
+     */
+    AccuracyHarness(long[] keys, int topK) {
+        this.keys = keys;
+        this.topK = topK;
+        for (long key : keys) {
+            exact.addTo(key, 1);
+        }
+        distinctKeys = new long[exact.size()];
+        exactCounts = new long[exact.size()];
+        exact.copyTo(distinctKeys, exactCounts);
+        long[] sortedCounts = exactCounts.clone();
+        Arrays.sort(sortedCounts);
+        topKThreshold = sortedCounts.length == 0 ? 0 : sortedCounts[Math.max(0, sortedCounts.length - topK)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected key=value argument: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        long[] keys;
+        String file = option(options, "file", "");
+        if (!file.isEmpty()) {
+            keys = readUserIds(file);
+        } else {
+            keys = KeyGenerators.generate(Integer.parseInt(option(options, "keys", "10000000")),
+                    Integer.parseInt(option(options, "keySpace", "1000000")),
+                    Double.parseDouble(option(options, "skew", "1.1")), 42);
+        }
+        CountMinSketch.HashScheme hashScheme =
+                CountMinSketch.HashScheme.valueOf(option(options, "hashScheme", "MIX64"));
+        int topK = Integer.parseInt(option(options, "topK", "100"));
+        int topKCapacity = Integer.parseInt(option(options, "topKCapacity", "1000"));
+
+        AccuracyHarness harness = new AccuracyHarness(keys, topK);
+        System.out.println("keys=" + keys.length + " distinct=" + harness.distinctKeys.length + " topK=" + topK
+                + " hashScheme=" + hashScheme);
+        System.out.println("error,confidence,width,depth,tableBytes,updateMode,estimator,addsPerSec,"
+                + "meanRelError,p99RelError,maxAbsError,withinErrorBound,topKPrecision,topKRecall");
+        for (String error : option(options, "errors", "0.01,0.001,0.0001").split(",")) {
+            for (String confidence : option(options, "confidences", "0.9,0.99,0.999").split(",")) {
+                for (String updateMode : option(options, "updateModes", "STANDARD,CONSERVATIVE").split(",")) {
+                    harness.run(Double.parseDouble(error), Double.parseDouble(confidence),
+                            CountMinSketch.UpdateMode.valueOf(updateMode), hashScheme, topKCapacity,
+                            option(options, "estimators", "MIN,COUNT_MEAN_MIN").split(","));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream the keys through a sketch and print one line per estimator
+     */
+    void run(double error, double confidence, CountMinSketch.UpdateMode updateMode,
+             CountMinSketch.HashScheme hashScheme, int topKCapacity, String[] estimators) {
+        CountMinSketch cms = new CountMinSketch(error, confidence, topKCapacity, hashScheme);
+        cms.setUpdateMode(updateMode);
+        long start = System.nanoTime();
+        for (long key : keys) {
+            cms.add(key);
+        }
+        double addsPerSecond = keys.length / ((System.nanoTime() - start) / 1e9);
+
+        // the sketch guarantees an error of at most error * N with the given confidence
+        long errorBound = (long) (error * keys.length);
+        for (String estimator : estimators) {
+            if (!CountMinSketch.isSupported(updateMode, CountMinSketch.Estimator.valueOf(estimator))) {
+                continue;
+            }
+            cms.setEstimator(CountMinSketch.Estimator.valueOf(estimator));
+            double[] relativeErrors = new double[distinctKeys.length];
+            double relativeErrorSum = 0;
+            long maxAbsoluteError = 0;
+            int withinBound = 0;
+            for (int i = 0; i < distinctKeys.length; i++) {
+                long absoluteError = Math.abs(cms.estimateCount(distinctKeys[i]) - exactCounts[i]);
+                relativeErrors[i] = (double) absoluteError / exactCounts[i];
+                relativeErrorSum += relativeErrors[i];
+                maxAbsoluteError = Math.max(maxAbsoluteError, absoluteError);
+                if (absoluteError <= errorBound) {
+                    withinBound++;
+                }
+            }
+            Arrays.sort(relativeErrors);
+            int keyCount = Math.max(1, distinctKeys.length);
+            double p99RelativeError = relativeErrors.length == 0
+                    ? 0 : relativeErrors[Math.min(relativeErrors.length - 1, (int) (relativeErrors.length * 0.99))];
+
+            // a result is relevant if its exact count reaches the count of the exact K-th key, so ties count
+            Map<Long, Long> sketchTopK = cms.getTopK(topK);
+            int hits = 0;
+            for (Long key : sketchTopK.keySet()) {
+                if (exact.get(key, 0L) >= topKThreshold) {
+                    hits++;
+                }
+            }
+            double precision = sketchTopK.isEmpty() ? 0 : (double) hits / sketchTopK.size();
+            double recall = (double) hits / Math.max(1, Math.min(topK, distinctKeys.length));
+
+            System.out.println(error + "," + confidence + "," + cms.getWidth() + "," + cms.getDepth() + ","
+                    + 8L * cms.getWidth() * cms.getDepth() + "," + updateMode + "," + estimator + ","
+                    + (long) addsPerSecond + ","
+                    + format(relativeErrorSum / keyCount) + "," + format(p99RelativeError) + "," + maxAbsoluteError
+                    + "," + format((double) withinBound / keyCount) + "," + format(precision) + "," + format(recall));
+        }
+    }
+
+    /**
+     * Read the user ids of the well formed rows of a Comments.xml file
+     *
+     * @param path the path of the file
+     * @return the user ids, in the order of the rows
+     * @throws IOException if the file cannot be read
+     */
+    static long[] readUserIds(String path) throws IOException {
+        CommentRowParser rowParser = new CommentRowParser();
+        MappedLineReader reader = new MappedLineReader(path, 0, new File(path).length());
+        long[] userIds = new long[1 << 20];
+        int size = 0;
+        try {
+            while (reader.next()) {
+                if (rowParser.parse(reader.line())) {
+                    if (size == userIds.length) {
+                        userIds = Arrays.copyOf(userIds, userIds.length << 1);
+                    }
+                    userIds[size++] = rowParser.getUserId();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return Arrays.copyOf(userIds, size);
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static String format(double value) {
+        return String.format("%.4f", value);
+    }
+}
@@ -0,0 +1,93 @@
+package gr.tuc.dkap.cms.storm.benchmark;
+
+import gr.tuc.dkap.cms.storm.utils.CommentRowParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares CommentRowParser with the String.split based row parsing CMSSpout used before it.
+ * Rows are read from the Comments.xml file given with -p commentsFile=..., or taken from a few sample rows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommentRowParserBenchmark {
+
+    private static final int MAX_ROWS = 100000;
+    private static final String[] SAMPLE_ROWS = {
+            "  <row Id=\"1\" PostId=\"35314\" Score=\"39\" Text=\"not sure why this is getting downvoted -- it is correct! Double check it in your compiler if you don't believe him!\" CreationDate=\"2008-09-06T08:07:10.730\" UserId=\"1\" />",
+            "  <row Id=\"2\" PostId=\"35314\" Score=\"8\" Text=\"Yeah, I didn't believe it until I created a console app - but good lord!  Why would they give you the rope to hang yourself!  I hated that about VB.NET - the OrElse and AndAlso keywords!\" CreationDate=\"2008-09-06T08:09:52.330\" UserId=\"3\" />",
+            "  <row Id=\"4\" PostId=\"35195\" Score=\"0\" Text=\"I don't see an accepted answer now, jon -- do you have an idea what happened?\" CreationDate=\"2008-09-06T08:42:16.980\" UserId=\"4642\" />",
+            "  <row Id=\"9\" PostId=\"47239\" Score=\"0\" Text=\"Jonathan: Wow, thank you for that detailed answer. I'll have a look at the lambda expressions &quot;trick&quot;.\" CreationDate=\"2008-09-06T09:53:21.100\" UserId=\"4140\" />",
+            "  <row Id=\"12\" PostId=\"47428\" Score=\"3\" Text=\"One of the things that make a url user-friendly is 'discover-ability', meaning you can take a guess at url's simply from the address bar.\" CreationDate=\"2008-09-06T13:38:23.647\" UserId=\"4642\" />"
+    };
+
+    @Param({""})
+    public String commentsFile;
+
+    private String[] rows;
+    private int index;
+    private CommentRowParser parser = new CommentRowParser();
+
+    @Setup
+    public void setup() throws IOException {
+        if (commentsFile.isEmpty()) {
+            rows = SAMPLE_ROWS;
+            return;
+        }
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(commentsFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null && lines.size() < MAX_ROWS) {
+                if (line.trim().startsWith("<row")) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        rows = lines.toArray(new String[lines.size()]);
+    }
+
+    private String nextRow() {
+        String row = rows[index];
+        index = index + 1 == rows.length ? 0 : index + 1;
+        return row;
+    }
+
+    @Benchmark
+    public void scanner(Blackhole blackhole) {
+        if (parser.parse(nextRow())) {
+            blackhole.consume(parser.getPostId());
+            blackhole.consume(parser.getScore());
+            blackhole.consume(parser.getUserId());
+        }
+    }
+
+    /**
+     * The row parsing of CMSSpout.createTuple before CommentRowParser, plus the parsing to long done by CMSBolt
+     */
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        String line = nextRow();
+        String[] data = line.split("\" ");
+        String postId = data[1].substring(data[1].indexOf("\"") + 1, data[1].length());
+        String score = data[2].substring(data[2].indexOf("\"") + 1, data[2].length());
+        String userId = data[5].substring(data[5].indexOf("\"") + 1, data[5].length());
+        blackhole.consume(postId);
+        blackhole.consume(score);
+        blackhole.consume(Long.parseLong(userId));
+    }
+}
@@ -0,0 +1,95 @@
+package gr.tuc.dkap.cms.storm.benchmark;
+
+import gr.tuc.dkap.cms.storm.utils.ConcurrentCountMinSketch;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how adds scale from 1 to N threads for:
+ * <ul>
+ * <li>one ConcurrentCountMinSketch shared by all threads</li>
+ * <li>one CountMinSketch shared by all threads behind a lock</li>
+ * <li>one CountMinSketch per thread, as with one CMSBolt task per thread (N times the memory)</li>
+ * </ul>
+ * ConcurrentCountMinSketch does not track heavy hitters, so the CountMinSketch variants only add to the counters too,
+ * with addToCounters, and all three measure the same work.
+ * Run main to execute the benchmark for 1, 2, 4, ... up to the available processors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentCountMinSketchBenchmark {
+
+    private static final double ERROR = 0.001d;
+    private static final double ERROR_LIMIT = 0.999d;
+    private static final int KEYS = 1 << 16;
+    private static final int KEY_SPACE = 1000000;
+    private static final double SKEW = 1.1;
+
+    private ConcurrentCountMinSketch concurrentSketch;
+    private CountMinSketch lockedSketch;
+
+    @Setup
+    public void setup() {
+        concurrentSketch = new ConcurrentCountMinSketch(ERROR, ERROR_LIMIT);
+        lockedSketch = new CountMinSketch(ERROR, ERROR_LIMIT);
+    }
+
+    /**
+     * Zipf keys and a private sketch for each benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private long[] keys;
+        private int index;
+        private CountMinSketch ownSketch;
+
+        @Setup
+        public void setup() {
+            keys = KeyGenerators.zipf(KEYS, KEY_SPACE, SKEW, Thread.currentThread().getId());
+            ownSketch = new CountMinSketch(ERROR, ERROR_LIMIT);
+        }
+
+        long nextKey() {
+            return keys[index++ & (KEYS - 1)];
+        }
+    }
+
+    @Benchmark
+    public long concurrentAdd(ThreadState state) {
+        return concurrentSketch.add(state.nextKey());
+    }
+
+    @Benchmark
+    public long synchronizedAdd(ThreadState state) {
+        long key = state.nextKey();
+        synchronized (lockedSketch) {
+            return lockedSketch.addToCounters(key, 1);
+        }
+    }
+
+    @Benchmark
+    public long perThreadAdd(ThreadState state) {
+        return state.ownSketch.addToCounters(state.nextKey(), 1);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(ConcurrentCountMinSketchBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
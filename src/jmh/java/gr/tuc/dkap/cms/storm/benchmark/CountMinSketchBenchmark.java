@@ -0,0 +1,73 @@
+package gr.tuc.dkap.cms.storm.benchmark;
+
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of CountMinSketch.add (including the heavy hitter tracking) and estimateCount, for uniform and zipf
+ * keys of several skews, for several sketch sizes, for each hash scheme and for a long[] and a compact table
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CountMinSketchBenchmark {
+
+    private static final int KEYS = 1 << 20;
+    private static final int KEY_SPACE = 1000000;
+
+    /**
+     * The zipf exponent of the keys, 0 for uniform keys
+     */
+    @Param({"0", "0.8", "1.1", "1.5"})
+    public double skew;
+
+    /**
+     * The error/confidence of the sketch, as in CMSTopology ERROR and ERROR_LIMIT
+     */
+    @Param({"0.001/0.999", "0.0001/0.999", "0.00001/0.9999"})
+    public String errorConfidence;
+
+    @Param({"1000"})
+    public int topKCapacity;
+
+    @Param({"LEGACY", "MIX64"})
+    public CountMinSketch.HashScheme hashScheme;
+
+    @Param({"HEAP", "COMPACT"})
+    public CountMinSketch.Storage storage;
+
+    private long[] keys;
+    private int index;
+    private CountMinSketch cms;
+
+    @Setup
+    public void setup() {
+        String[] parts = errorConfidence.split("/");
+        cms = new CountMinSketch(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), topKCapacity,
+                hashScheme, storage);
+        keys = KeyGenerators.generate(KEYS, KEY_SPACE, skew, 42);
+        // fill the sketch once, so estimates and the heavy hitters see a populated sketch
+        for (long key : keys) {
+            cms.add(key);
+        }
+    }
+
+    private long nextKey() {
+        return keys[index++ & (KEYS - 1)];
+    }
+
+    @Benchmark
+    public void add() {
+        cms.add(nextKey());
+    }
+
+    @Benchmark
+    public long estimateCount() {
+        return cms.estimateCount(nextKey());
+    }
+}
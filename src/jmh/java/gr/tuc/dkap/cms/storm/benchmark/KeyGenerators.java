@@ -0,0 +1,64 @@
+package gr.tuc.dkap.cms.storm.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generators of benchmark keys (user ids), pre-computed in arrays so that generating them is not measured
+ */
+public final class KeyGenerators {
+
+    private KeyGenerators() {
+    }
+
+    /**
+     * @param count    the number of keys to generate
+     * @param keySpace the keys are in [1, keySpace]
+     * @param skew     the zipf exponent, 0 generates uniform keys
+     * @param seed     the random seed
+     * @return the keys
+     */
+    public static long[] generate(int count, int keySpace, double skew, long seed) {
+        return skew == 0 ? uniform(count, keySpace, seed) : zipf(count, keySpace, skew, seed);
+    }
+
+    /**
+     * @param count    the number of keys to generate
+     * @param keySpace the keys are in [1, keySpace]
+     * @param seed     the random seed
+     * @return uniformly distributed keys
+     */
+    public static long[] uniform(int count, int keySpace, long seed) {
+        Random random = new Random(seed);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = 1 + random.nextInt(keySpace);
+        }
+        return keys;
+    }
+
+    /**
+     * @param count    the number of keys to generate
+     * @param keySpace the keys are in [1, keySpace], key r being the r-th most frequent
+     * @param skew     the zipf exponent s, key r has probability proportional to 1/r^s
+     * @param seed     the random seed
+     * @return zipf distributed keys
+     */
+    public static long[] zipf(int count, int keySpace, double skew, long seed) {
+        // cumulative distribution of the ranks
+        double[] cdf = new double[keySpace];
+        double sum = 0;
+        for (int rank = 1; rank <= keySpace; rank++) {
+            sum += 1 / Math.pow(rank, skew);
+            cdf[rank - 1] = sum;
+        }
+
+        Random random = new Random(seed);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            keys[i] = 1 + (index >= 0 ? index : Math.min(-index - 1, keySpace - 1));
+        }
+        return keys;
+    }
+}
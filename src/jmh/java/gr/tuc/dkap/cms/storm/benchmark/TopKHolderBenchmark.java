@@ -0,0 +1,58 @@
+package gr.tuc.dkap.cms.storm.benchmark;
+
+import gr.tuc.dkap.cms.storm.utils.TopKHolder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of TopKHolder updates and top K queries, for several holder capacities
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TopKHolderBenchmark {
+
+    private static final int KEYS = 1 << 20;
+    private static final int KEY_SPACE = 1000000;
+
+    @Param({"100", "1000", "10000"})
+    public int capacity;
+
+    @Param({"1.1"})
+    public double skew;
+
+    @Param({"100"})
+    public int topK;
+
+    private long[] keys;
+    private long[] counts;
+    private int index;
+    private TopKHolder holder;
+
+    @Setup
+    public void setup() {
+        keys = KeyGenerators.generate(KEYS, KEY_SPACE, skew, 42);
+        counts = new long[KEY_SPACE + 1];
+        holder = new TopKHolder(capacity);
+        // offer growing counts as CountMinSketch.add does
+        for (long key : keys) {
+            holder.addToTopKList(key, ++counts[(int) key]);
+        }
+    }
+
+    @Benchmark
+    public void addToTopKList() {
+        int key = (int) keys[index++ & (KEYS - 1)];
+        holder.addToTopKList(key, ++counts[key]);
+    }
+
+    @Benchmark
+    public Map<Long, Long> getTopK() {
+        return holder.getTopK(topK);
+    }
+}
@@ -0,0 +1,368 @@
+package gr.tuc.dkap.cms.storm;
+
+import gr.tuc.dkap.cms.storm.utils.WindowedCountMinSketch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checkpoint of the state of a CMSBolt task: the input it counts, the sketch of each dimension it counts, the window
+ * it counts, and for each spout task the input position up to which the sketches have counted the rows of that spout
+ * task. The position is the one of the last offset marker the spout task sent before the rows that follow it, as the
+ * byte offset in its input and the number of lines read before it. The checkpoint taken when all spout tasks have
+ * reached eof is complete.
+ * <p/>
+ * Checkpoints are stored as one file per CMSBolt task index, so that a restarted task finds the file of the task it
+ * replaces, and spout tasks can read the positions of all CMSBolt tasks to find where to resume reading.
+ * Checkpoints of another input are ignored, and so are the checkpoints of a run whose CMSBolt tasks have all
+ * completed, so the next run with the same checkpoint directory counts its input from the start.
+ * <p/>
+ * The sketches are held as copies, taken when the checkpoint is created, and only encoded by toByteArray, so the bolt
+ * can hand the checkpoint to a CheckpointWriter and go on counting.
+ */
+public class BoltCheckpoint {
+
+    private static final int FORMAT_MAGIC = 0x434B5003; // "CKP" + format version 3, with a sketch per dimension
+
+    private final String input;
+    private final boolean complete;
+    private final long window;
+    private final long processedTuples;
+    private final long[] spoutOffsets; // per spout task index
+    private final long[] spoutLines; // per spout task index
+    // dimension id -> sketch, decoded from sketchBytes on first use for a checkpoint read from a file
+    private final Map<String, WindowedCountMinSketch> sketches;
+    private final Map<String, byte[]> sketchBytes; // dimension id -> encoded sketch, for a checkpoint read from a file
+
+    /**
+     * @param input           the identity of the input and counted dimensions, as returned by identity
+     * @param complete        true if all spout tasks have reached eof
+     * @param window          the id of the window being counted
+     * @param processedTuples the number of tuples counted
+     * @param spoutOffsets    the input offset counted up to, per spout task index
+     * @param spoutLines      the lines counted up to, per spout task index
+     * @param sketches        a copy of the sketch of each dimension by dimension id, not modified after the
+     *                        checkpoint is created
+     */
+    public BoltCheckpoint(String input, boolean complete, long window, long processedTuples, long[] spoutOffsets,
+                          long[] spoutLines, Map<String, WindowedCountMinSketch> sketches) {
+        this(input, complete, window, processedTuples, spoutOffsets, spoutLines, sketches,
+                new LinkedHashMap<String, byte[]>());
+    }
+
+    /**
+     * Initializer for a checkpoint read from a file, whose sketches are decoded when they are used
+     */
+    private BoltCheckpoint(String input, boolean complete, long window, long processedTuples, long[] spoutOffsets,
+                           long[] spoutLines, Map<String, WindowedCountMinSketch> sketches,
+                           Map<String, byte[]> sketchBytes) {
+        this.input = input;
+        this.complete = complete;
+        this.window = window;
+        this.processedTuples = processedTuples;
+        this.spoutOffsets = spoutOffsets;
+        this.spoutLines = spoutLines;
+        this.sketches = sketches;
+        this.sketchBytes = sketchBytes;
+    }
+
+    /**
+     * @param directory the checkpoint directory
+     * @param taskIndex the index of the CMSBolt task
+     * @return the checkpoint file of the task
+     */
+    public static File file(String directory, int taskIndex) {
+        return new File(directory, CMSTopology.CMS_BOLT_ID + "-" + taskIndex + ".ckpt");
+    }
+
+    /**
+     * The identity of what a checkpoint counts: the identity of the input, with the dimensions and the window that
+     * are counted. Spout tasks and CMSBolt tasks only use the checkpoints of the same identity, so a CMSBolt task
+     * never ignores a checkpoint that the spout tasks resume from.
+     *
+     * @param conf the topology config
+     * @return the identity of the checkpoints of the topology
+     */
+    public static String identity(Map conf) {
+        return inputIdentity((String) conf.get("dataFile"), (String) conf.get("dataUrl")) + ";" + conf.get("dimensions")
+                + ";" + conf.get("windowLengthSecs") + ";" + conf.get("windowSlideSecs");
+    }
+
+    /**
+     * The identity of the input of the topology: the absolute path of the local data file, or the URL, with the
+     * length and last modification time of the input. A checkpoint only applies to the input it was taken from.
+     *
+     * @param dataFile the local data file, null or empty to read the URL
+     * @param dataUrl  the URL of the data
+     * @return the identity of the input
+     */
+    public static String inputIdentity(String dataFile, String dataUrl) {
+        if (dataFile != null && !dataFile.isEmpty()) {
+            File file = new File(dataFile).getAbsoluteFile();
+            return file.getPath() + ";" + file.length() + ";" + file.lastModified();
+        }
+        String length = null;
+        long lastModified = 0L;
+        try {
+            URLConnection connection = new URL(dataUrl).openConnection();
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).setRequestMethod("HEAD");
+            }
+            length = connection.getHeaderField("Content-Length");
+            lastModified = connection.getLastModified();
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        } catch (IOException e) {
+            // an input that cannot be reached matches no checkpoint
+        }
+        return dataUrl + ";" + length + ";" + lastModified;
+    }
+
+    /**
+     * @param directory    the checkpoint directory
+     * @param cmsBoltTasks the number of CMSBolt tasks
+     * @param input        the identity of the input
+     * @return true if every CMSBolt task has a complete checkpoint of the input, so its run has ended
+     */
+    public static boolean isRunComplete(String directory, int cmsBoltTasks, String input) {
+        for (int i = 0; i < cmsBoltTasks; i++) {
+            try {
+                BoltCheckpoint checkpoint = read(file(directory, i));
+                if (checkpoint == null || !checkpoint.isComplete() || !checkpoint.isOf(input)) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ask a spout task to send its rows again from the position a CMSBolt task has counted up to, when the CMSBolt
+     * task has restarted and the spout task has not. The request is written to a temporary file and renamed, so the
+     * spout task never reads a partial request.
+     *
+     * @param directory      the checkpoint directory
+     * @param cmsBoltTask    the index of the CMSBolt task
+     * @param spoutTaskIndex the index of the spout task
+     * @param offset         the input offset to send the rows again from
+     * @param lines          the lines before the offset
+     * @throws IOException if the request cannot be written
+     */
+    public static void requestRewind(String directory, int cmsBoltTask, int spoutTaskIndex, long offset, long lines)
+            throws IOException {
+        File file = rewindFile(directory, cmsBoltTask, spoutTaskIndex);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory [" + parent + "]");
+        }
+        File temp = new File(parent, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeLong(offset);
+            out.writeLong(lines);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Cannot rename [" + temp + "] to [" + file + "]");
+        }
+    }
+
+    /**
+     * Take the requests of all CMSBolt tasks to send the rows of a spout task again, deleting them
+     *
+     * @param directory      the checkpoint directory
+     * @param cmsBoltTasks   the number of CMSBolt tasks
+     * @param spoutTaskIndex the index of the spout task
+     * @return the oldest requested position as {offset, lines}, or null if there is no request
+     */
+    public static long[] takeRewind(String directory, int cmsBoltTasks, int spoutTaskIndex) {
+        long[] oldest = null;
+        for (int i = 0; i < cmsBoltTasks; i++) {
+            File file = rewindFile(directory, i, spoutTaskIndex);
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(file));
+                try {
+                    long offset = in.readLong();
+                    long lines = in.readLong();
+                    if (oldest == null || lines < oldest[1]) {
+                        oldest = new long[]{offset, lines};
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // a request that cannot be read is sent again by its CMSBolt task
+            }
+            file.delete();
+        }
+        return oldest;
+    }
+
+    private static File rewindFile(String directory, int cmsBoltTask, int spoutTaskIndex) {
+        return new File(directory,
+                CMSTopology.CMS_BOLT_ID + "-" + cmsBoltTask + "-spout-" + spoutTaskIndex + ".rewind");
+    }
+
+    /**
+     * Read a checkpoint file
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint, or null if the file does not exist
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public static BoltCheckpoint read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT_MAGIC) {
+                throw new IOException("File [" + file + "] is not a CMSBolt checkpoint of this version");
+            }
+            String input = in.readUTF();
+            boolean complete = in.readBoolean();
+            long window = in.readLong();
+            long processedTuples = in.readLong();
+            int spoutTasks = in.readInt();
+            long[] spoutOffsets = new long[spoutTasks];
+            long[] spoutLines = new long[spoutTasks];
+            for (int i = 0; i < spoutTasks; i++) {
+                spoutOffsets[i] = in.readLong();
+                spoutLines[i] = in.readLong();
+            }
+            int dimensions = in.readInt();
+            Map<String, byte[]> sketchBytes = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < dimensions; i++) {
+                String dimension = in.readUTF();
+                byte[] sketch = new byte[in.readInt()];
+                in.readFully(sketch);
+                sketchBytes.put(dimension, sketch);
+            }
+            return new BoltCheckpoint(input, complete, window, processedTuples, spoutOffsets, spoutLines,
+                    new LinkedHashMap<String, WindowedCountMinSketch>(), sketchBytes);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Encode the checkpoint, including its sketches, in its file format
+     *
+     * @return the checkpoint in its file format
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeUTF(input);
+            out.writeBoolean(complete);
+            out.writeLong(window);
+            out.writeLong(processedTuples);
+            out.writeInt(spoutOffsets.length);
+            for (int i = 0; i < spoutOffsets.length; i++) {
+                out.writeLong(spoutOffsets[i]);
+                out.writeLong(spoutLines[i]);
+            }
+            Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>(sketchBytes);
+            for (Map.Entry<String, WindowedCountMinSketch> entry : sketches.entrySet()) {
+                encoded.put(entry.getKey(), entry.getValue().toByteArray());
+            }
+            out.writeInt(encoded.size());
+            for (Map.Entry<String, byte[]> entry : encoded.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param input the identity of an input
+     * @return true if the checkpoint was taken from the input
+     */
+    public boolean isOf(String input) {
+        return this.input.equals(input);
+    }
+
+    /**
+     * @return true if all spout tasks had reached eof when the checkpoint was taken
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the id of the window being counted
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of tuples counted
+     */
+    public long getProcessedTuples() {
+        return processedTuples;
+    }
+
+    /**
+     * @return the number of spout tasks with a position in the checkpoint
+     */
+    public int getSpoutTasks() {
+        return spoutOffsets.length;
+    }
+
+    /**
+     * @param spoutTaskIndex the index of the spout task
+     * @return the input offset of the spout task that the sketches have counted up to
+     */
+    public long getSpoutOffset(int spoutTaskIndex) {
+        return spoutOffsets[spoutTaskIndex];
+    }
+
+    /**
+     * @param spoutTaskIndex the index of the spout task
+     * @return the lines of the spout task that the sketches have counted up to
+     */
+    public long getSpoutLines(int spoutTaskIndex) {
+        return spoutLines[spoutTaskIndex];
+    }
+
+    /**
+     * @param dimension the id of a dimension
+     * @return the sketch of the dimension, or null if the checkpoint has no sketch of the dimension
+     * @throws IllegalArgumentException if the sketch of a checkpoint read from a file is malformed
+     */
+    public WindowedCountMinSketch getSketch(String dimension) {
+        WindowedCountMinSketch sketch = sketches.get(dimension);
+        if (sketch == null && sketchBytes.containsKey(dimension)) {
+            sketch = WindowedCountMinSketch.fromByteArray(sketchBytes.remove(dimension));
+            sketches.put(dimension, sketch);
+        }
+        return sketch;
+    }
+}
@@ -1,116 +1,445 @@
 package gr.tuc.dkap.cms.storm;
 
+import backtype.storm.Config;
+import backtype.storm.Constants;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
 import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import backtype.storm.tuple.Values;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import gr.tuc.dkap.cms.storm.utils.LongLongHashMap;
+import gr.tuc.dkap.cms.storm.utils.TopKHolder;
+import gr.tuc.dkap.cms.storm.utils.TopKPayload;
 import org.apache.log4j.Logger;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.*;
 
 /**
- * An aggregator bolt that merges top K results from each bolt and logs the global top K results
+ * An aggregator bolt that merges top K results from each bolt and logs the global top K results.
+ * The global top K of each window is kept up to date as the results of each bolt arrive, in a bounded heap of the
+ * summed counts, and sent periodically to GlobalTopKStream. Once the heap is full, its smallest count is sent back
+ * to the bolts as the threshold a user id must reach to enter the global top K, so bolts that have not sent their
+ * results for the window yet only send candidates. No threshold is sent with skew aware grouping, since a bolt only
+ * counts part of a heavy user id and cannot prune its results against the global threshold.
+ * When aggregating sketches, it merges the sketches of all bolts in one global sketch instead,
+ * which answers the top K and custom user id queries.
+ * Results are merged per window, and logged when all bolts have sent their results for the window.
+ * Counts of the same user id from several bolts are summed, since with skew aware grouping the counts of a heavy
+ * user id are split between two bolts, and each custom user id is estimated by both of its bolts.
+ * Top K results of other dimensions of users are summed the same way, per dimension, and sent to GlobalTopKStream
+ * when all bolts have sent their results for the window. The count of each post is split between all bolts, so the
+ * sketches of the comments of each post are merged instead, and the global top K is read from the merged sketch.
+ * When a query port is configured, the last snapshots of all bolts are merged on each tick that follows a new
+ * snapshot, and published to a QueryServer, that answers point and top K queries while the topology runs.
  */
 public class CMSAggregatorBolt implements IRichBolt {
     private static final Logger LOG = Logger.getLogger(CMSAggregatorBolt.class);
 
     private int topK; // number of top K values to extract
     private int totalCMSBolts; // number of cmc bolts that process the stream
-    private int totalCMSBoltsSentTopK; // number of cmc bolts that have finished processing stream
-    protected Map<String, Long> allTopK = new HashMap<String, Long>();  // all top k values from all bolts
+    // number of cmc bolts that have sent results, per window
+    private Map<Long, Integer> totalCMSBoltsSentTopK = new HashMap<Long, Integer>();
+    // all top k values from all bolts, per window
+    protected Map<Long, LongLongHashMap> allTopK = new HashMap<Long, LongLongHashMap>();
+    // global top K of the summed counts, per window
+    private Map<Long, TopKHolder> globalTopK = new HashMap<Long, TopKHolder>();
+    private OutputCollector collector;
+    private long globalTopKIntervalMillis; // 0 when the global top K is sent only for complete windows
+    private long lastGlobalTopKTime;
+    private RateMetric resultsPerSecond; // top K results and sketches received from bolts per second
+    private LatencyMetric mergeLatency; // latency of merging the results of a bolt
+    // merged sketch of all bolts per window, when aggregating sketches
+    private Map<Long, CountMinSketch> windowSketches = new HashMap<Long, CountMinSketch>();
+    private CountMinSketch globalSketch; // merged sketch of the last complete window
+    private CountMinSketch.Estimator estimator = CountMinSketch.Estimator.MIN; // estimator of the global sketch
+    private List<Long> pendingUserIds = new ArrayList<Long>(); // custom user ids received before all sketches
+    // last snapshot of each bolt task, merged and published once per tick when a new one has arrived
+    private Map<Integer, CountMinSketch> boltSnapshots = new HashMap<Integer, CountMinSketch>();
+    private boolean snapshotsChanged;
+    private QueryServer queryServer; // null when live queries are disabled
+    private int customUserIdEstimates = 1; // number of bolts that estimate each custom user id
+    private boolean sendThreshold = true; // false when the count of a user id can be split between bolts
+    // partial estimates of custom user ids: user id -> {sum of estimates, number of estimates}
+    private Map<Long, long[]> partialUserIdCounts = new HashMap<Long, long[]>();
+    // summed top K results of the other dimensions: dimension -> window -> results
+    private Map<String, Map<Long, DimensionTopK>> dimensionTopK = new HashMap<String, Map<Long, DimensionTopK>>();
+
+    /**
+     * Summed top K results, or merged sketches, of a dimension for a window
+     */
+    private static class DimensionTopK {
+        private final LongLongHashMap sums = new LongLongHashMap();
+        private final TopKHolder topK;
+        private CountMinSketch sketch; // merged sketch, for a dimension not partitioned by user id
+        private int bolts; // number of bolts that have sent results
+
+        private DimensionTopK(int capacity) {
+            topK = new TopKHolder(capacity);
+        }
+    }
 
     @Override
     public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
         topK = Integer.parseInt(map.get("topK").toString());
+        collector = outputCollector;
+        int metricsBucketSecs = Integer.parseInt(map.get("metricsBucketSecs").toString());
+        resultsPerSecond = topologyContext.registerMetric("resultsPerSecond", new RateMetric(), metricsBucketSecs);
+        mergeLatency = topologyContext.registerMetric("mergeLatencyNanos", new LatencyMetric(1), metricsBucketSecs);
+        globalTopKIntervalMillis = Integer.parseInt(map.get("globalTopKIntervalSecs").toString()) * 1000L;
+        lastGlobalTopKTime = System.currentTimeMillis();
         totalCMSBolts = Integer.parseInt(map.get("totalCMSBolts").toString());
+        estimator = CountMinSketch.Estimator.valueOf(map.get("estimator").toString());
+        if (Boolean.parseBoolean(map.get("skewAware").toString())) {
+            customUserIdEstimates = SkewAwareGrouping.queryChoices(totalCMSBolts);
+            sendThreshold = false;
+        }
+        int queryPort = Integer.parseInt(map.get("queryPort").toString());
+        if (queryPort > 0) {
+            try {
+                queryServer = new QueryServer(queryPort, topK);
+            } catch (IOException e) {
+                LOG.error("Could not start query server on port [" + queryPort + "], live queries are disabled", e);
+            }
+        }
     }
 
     @Override
     public void execute(Tuple tuple) {
 
-        // If custom user id count is received just log it
+        // If tick tuple, publish the snapshots received since the last tick, and send the current global top K of
+        // the windows that are not complete yet
+        if (isTickTuple(tuple)) {
+            if (snapshotsChanged) {
+                queryServer.publish(mergeSnapshots());
+                snapshotsChanged = false;
+            }
+            if (globalTopKIntervalMillis > 0 && System.currentTimeMillis() - lastGlobalTopKTime >= globalTopKIntervalMillis) {
+                for (Map.Entry<Long, TopKHolder> entry : globalTopK.entrySet()) {
+                    emitGlobalTopK(Dimension.USER_COMMENTS.getId(), entry.getKey(), entry.getValue().getTopK(topK),
+                            false);
+                }
+                lastGlobalTopKTime = System.currentTimeMillis();
+            }
+            return;
+        }
+
+        // If custom user id count is received, log it when the estimates of all its bolts have been summed
         if (tuple.getSourceStreamId().equals(StreamConfig.CUSTOM_USER_IDS_COUNT_STREAM)) {
-            LOG.info("User id [" + tuple.getStringByField("userId") + "] count [" + tuple.getLongByField("count") + "]");
+            long userId = tuple.getLongByField("userId");
+            long[] partial = partialUserIdCounts.get(userId);
+            if (partial == null) {
+                partial = new long[2];
+                partialUserIdCounts.put(userId, partial);
+            }
+            partial[0] += tuple.getLongByField("count");
+            if (++partial[1] == customUserIdEstimates) {
+                partialUserIdCounts.remove(userId);
+                LOG.info("User id [" + userId + "] count [" + partial[0] + "]");
+            }
+        }
+
+        // If custom user id is received from spout, estimate it from the global sketch when all sketches are merged
+        if (tuple.getSourceStreamId().equals(StreamConfig.CUSTOM_USER_IDS_STREAM)) {
+            long userId = tuple.getLongByField("userId");
+            if (globalSketch != null) {
+                logUserIdEstimate(userId);
+            } else {
+                pendingUserIds.add(userId);
+            }
+        }
+
+        // Merge received sketch and log top K results and pending custom user ids when all have been received
+        if (tuple.getSourceStreamId().equals(StreamConfig.SKETCH_STREAM)) {
+            long window = tuple.getLongByField("window");
+            CountMinSketch sketch = CountMinSketch.fromByteArray((byte[]) tuple.getValueByField("sketch"));
+            String dimension = tuple.getStringByField("dimension");
+            if (!Dimension.USER_COMMENTS.getId().equals(dimension)) {
+                LOG.info("Received sketch of [" + dimension + "] from bolt for window [" + window + "]");
+                resultsPerSecond.incrBy(1);
+                mergeDimensionSketch(dimension, window, sketch);
+                return;
+            }
+            LOG.info("Received sketch with [" + sketch.getTotalCount() + "] counts from bolt for window [" + window + "]");
+            resultsPerSecond.incrBy(1);
+            long start = System.nanoTime();
+            CountMinSketch windowSketch = windowSketches.get(window);
+            if (windowSketch == null) {
+                windowSketches.put(window, sketch);
+            } else {
+                windowSketch.merge(sketch);
+            }
+            mergeLatency.recordSince(start);
+
+            if (receivedFromAllBolts(window)) {
+                globalSketch = windowSketches.remove(window);
+                globalSketch.setEstimator(estimator);
+                Map<Long, Long> results = globalSketch.getTopK(topK);
+                logTopKResults(Dimension.USER_COMMENTS.getId(), window, results);
+                emitGlobalTopK(Dimension.USER_COMMENTS.getId(), window, results, true);
+                for (long userId : pendingUserIds) {
+                    logUserIdEstimate(userId);
+                }
+                pendingUserIds.clear();
+            }
+        }
+
+        // Keep the last snapshot of each bolt, to be merged and published for live queries on the next tick
+        if (tuple.getSourceStreamId().equals(StreamConfig.SNAPSHOT_STREAM) && queryServer != null) {
+            boltSnapshots.put(tuple.getIntegerByField("taskId"),
+                    CountMinSketch.fromByteArray((byte[]) tuple.getValueByField("sketch")));
+            snapshotsChanged = true;
         }
 
         // Log top K results when all have been received
         if (tuple.getSourceStreamId().equals(StreamConfig.TOP_K_STREAM)) {
 
             // Add received topK results to sorted map
-            Map<String, Long> data = deserializeTopKValues(tuple.getStringByField("topK"));
-            LOG.info("Received [" + data.size() + "] topK results from bolt");
-            for (Map.Entry<String, Long> entry : data.entrySet()) {
-                allTopK.put(entry.getKey(), entry.getValue());
+            long window = tuple.getLongByField("window");
+            TopKPayload data = (TopKPayload) tuple.getValueByField("topK");
+            String dimension = tuple.getStringByField("dimension");
+            LOG.info("Received [" + data.size() + "] topK results of [" + dimension + "] from bolt for window ["
+                    + window + "]");
+            resultsPerSecond.incrBy(1);
+            if (!Dimension.USER_COMMENTS.getId().equals(dimension)) {
+                mergeDimensionTopK(dimension, window, data);
+                return;
+            }
+            long start = System.nanoTime();
+            LongLongHashMap windowTopK = allTopK.get(window);
+            TopKHolder windowGlobalTopK = globalTopK.get(window);
+            if (windowTopK == null) {
+                windowTopK = new LongLongHashMap(data.size() * totalCMSBolts);
+                allTopK.put(window, windowTopK);
+                windowGlobalTopK = new TopKHolder(topK);
+                globalTopK.put(window, windowGlobalTopK);
             }
 
-            // Check if all bolts have send their topK results and then extract global topK results
-            totalCMSBoltsSentTopK++;
-            if (totalCMSBoltsSentTopK == totalCMSBolts) {
-                logTopKResults(allTopK, topK);
+            // Sum the partial counts; a sum only grows, so the heap keeps the top K of the sums
+            for (int i = 0; i < data.size(); i++) {
+                long userId = data.getUserId(i);
+                windowGlobalTopK.addToTopKList(userId, windowTopK.addTo(userId, data.getCount(i)));
+            }
+            mergeLatency.recordSince(start);
+
+            // Check if all bolts have send their topK results and then extract global topK results,
+            // else send the bolts the count a user id needs to enter the global top K
+            if (receivedFromAllBolts(window)) {
+                allTopK.remove(window);
+                Map<Long, Long> results = globalTopK.remove(window).getTopK(topK);
+                logTopKResults(Dimension.USER_COMMENTS.getId(), window, results);
+                emitGlobalTopK(Dimension.USER_COMMENTS.getId(), window, results, true);
+            } else if (sendThreshold && windowGlobalTopK.size() == topK) {
+                collector.emit(StreamConfig.THRESHOLD_STREAM, new Values(window, windowGlobalTopK.getMinCount()));
             }
         }
 
     }
 
     /**
-     * Sorts given map by value and logs the topK values
+     * Sums the top K results of a bolt for a dimension of users other than their comments, and logs and sends the
+     * global top K of the dimension when all bolts have sent their results for the window
      *
-     * @param map       the map with the data
-     * @param topKToLog the values to logs
+     * @param dimension the id of the dimension
+     * @param window    the id of the window
+     * @param data      the top K results of the bolt
      */
-    private void logTopKResults(Map<String, Long> map, int topKToLog) {
-        int index = 1;
-        List list = new LinkedList(map.entrySet());
-        Collections.sort(list, new Comparator() {
+    private void mergeDimensionTopK(String dimension, long window, TopKPayload data) {
+        long start = System.nanoTime();
+        DimensionTopK windowTopK = dimensionWindow(dimension, window);
+        for (int i = 0; i < data.size(); i++) {
+            long item = data.getUserId(i);
+            windowTopK.topK.addToTopKList(item, windowTopK.sums.addTo(item, data.getCount(i)));
+        }
+        mergeLatency.recordSince(start);
+        completeDimensionWindow(dimension, window, windowTopK);
+    }
+
+    /**
+     * Merges the sketch of a bolt for a dimension not partitioned by user id, and logs and sends the global top K of
+     * the merged sketch when all bolts have sent their sketches for the window
+     *
+     * @param dimension the id of the dimension
+     * @param window    the id of the window
+     * @param sketch    the sketch of the window of the bolt
+     */
+    private void mergeDimensionSketch(String dimension, long window, CountMinSketch sketch) {
+        long start = System.nanoTime();
+        DimensionTopK windowTopK = dimensionWindow(dimension, window);
+        if (windowTopK.sketch == null) {
+            windowTopK.sketch = sketch;
+        } else {
+            windowTopK.sketch.merge(sketch);
+        }
+        mergeLatency.recordSince(start);
+        completeDimensionWindow(dimension, window, windowTopK);
+    }
 
-            @Override
-            public int compare(Object o1, Object o2) {
-                return ((Comparable) ((Map.Entry) (o2)).getValue()).compareTo(((Map.Entry) (o1)).getValue());
+    /**
+     * @param dimension the id of the dimension
+     * @param window    the id of the window
+     * @return the results of the dimension for the window, created when the first bolt sends its results
+     */
+    private DimensionTopK dimensionWindow(String dimension, long window) {
+        Map<Long, DimensionTopK> windows = dimensionTopK.get(dimension);
+        if (windows == null) {
+            windows = new HashMap<Long, DimensionTopK>();
+            dimensionTopK.put(dimension, windows);
+        }
+        DimensionTopK windowTopK = windows.get(window);
+        if (windowTopK == null) {
+            windowTopK = new DimensionTopK(topK);
+            windows.put(window, windowTopK);
+        }
+        return windowTopK;
+    }
+
+    /**
+     * Counts one more bolt that has sent results of the dimension for the window, and logs and sends the global top
+     * K when all bolts have sent their results. Results of older windows of the dimension that will never be
+     * complete are dropped.
+     *
+     * @param dimension  the id of the dimension
+     * @param window     the id of the window
+     * @param windowTopK the results of the dimension for the window
+     */
+    private void completeDimensionWindow(String dimension, long window, DimensionTopK windowTopK) {
+        if (++windowTopK.bolts < totalCMSBolts) {
+            return;
+        }
+        Map<Long, DimensionTopK> windows = dimensionTopK.get(dimension);
+        for (Iterator<Long> it = windows.keySet().iterator(); it.hasNext(); ) {
+            Long olderWindow = it.next();
+            if (olderWindow < window) {
+                LOG.warn("Dropping incomplete results of [" + dimension + "] of window [" + olderWindow + "]");
+                it.remove();
             }
-        });
+        }
+        windows.remove(window);
+        Map<Long, Long> results = windowTopK.sketch != null ? windowTopK.sketch.getTopK(topK)
+                : windowTopK.topK.getTopK(topK);
+        logTopKResults(dimension, window, results);
+        emitGlobalTopK(dimension, window, results, true);
+    }
 
-        Map<Object, Object> globalTopKResults = new LinkedHashMap();
-        for (Iterator it = list.iterator(); it.hasNext(); ) {
-            Map.Entry entry = (Map.Entry) it.next();
-            globalTopKResults.put(entry.getKey(), entry.getValue());
+    /**
+     * Counts one more bolt that has sent results for the window. When all bolts have sent results, results of
+     * older windows that will never be complete are dropped.
+     *
+     * @param window the id of the window
+     * @return true if all bolts have sent results for the window
+     */
+    private boolean receivedFromAllBolts(long window) {
+        Integer sent = totalCMSBoltsSentTopK.get(window);
+        sent = sent == null ? 1 : sent + 1;
+        if (sent < totalCMSBolts) {
+            totalCMSBoltsSentTopK.put(window, sent);
+            return false;
+        }
+
+        totalCMSBoltsSentTopK.remove(window);
+        for (Iterator<Long> it = totalCMSBoltsSentTopK.keySet().iterator(); it.hasNext(); ) {
+            Long olderWindow = it.next();
+            if (olderWindow < window) {
+                LOG.warn("Dropping incomplete results of window [" + olderWindow + "]");
+                it.remove();
+                allTopK.remove(olderWindow);
+                globalTopK.remove(olderWindow);
+                windowSketches.remove(olderWindow);
+            }
         }
+        return true;
+    }
 
-        for (Map.Entry<Object, Object> entry : globalTopKResults.entrySet()) {
-            if (index <= topKToLog) {
-                System.out.println(index + "," + entry.getKey() + "," + entry.getValue() + "");
+    /**
+     * Merges the last snapshot of each bolt in a new sketch, which is not modified after it is published
+     *
+     * @return the merged sketch
+     */
+    private CountMinSketch mergeSnapshots() {
+        CountMinSketch merged = null;
+        for (CountMinSketch snapshot : boltSnapshots.values()) {
+            if (merged == null) {
+                merged = snapshot.copy();
+            } else {
+                merged.merge(snapshot);
             }
+        }
+        merged.setEstimator(estimator);
+        return merged;
+    }
+
+    /**
+     * Logs the top K results
+     *
+     * @param dimension the id of the dimension of the results
+     * @param window    the id of the window of the results
+     * @param results   the top K results, sorted by count
+     */
+    private void logTopKResults(String dimension, long window, Map<Long, Long> results) {
+        LOG.info("Global top K results of [" + dimension + "] for window [" + window + "]");
+        int index = 1;
+        for (Map.Entry<Long, Long> entry : results.entrySet()) {
+            System.out.println(index + "," + entry.getKey() + "," + entry.getValue() + "");
             index++;
         }
     }
 
     /**
-     * Deserializes json string map to java.util.Map
+     * Sends the global top K of a window to GlobalTopKStream
      *
-     * @param jsonData the topK as json map
-     * @return the Map with topK results
+     * @param dimension the id of the dimension of the results
+     * @param window    the id of the window
+     * @param results   the top K results
+     * @param complete  true if all bolts have sent their results for the window
      */
-    private Map<String, Long> deserializeTopKValues(String jsonData) {
-        Type type = new TypeToken<Map<String, Long>>() {
-        }.getType();
-        return new Gson().fromJson(jsonData, type);
+    private void emitGlobalTopK(String dimension, long window, Map<Long, Long> results, boolean complete) {
+        collector.emit(StreamConfig.GLOBAL_TOP_K_STREAM, new Values(window, TopKPayload.of(results), complete,
+                dimension));
+    }
+
+    /**
+     * Check whether this tuple is a tick tuple
+     *
+     * @param tuple the tuple
+     * @return true if it is a tick tuple else false
+     */
+    private boolean isTickTuple(Tuple tuple) {
+        return tuple.getSourceComponent().equals(Constants.SYSTEM_COMPONENT_ID)
+                && tuple.getSourceStreamId().equals(Constants.SYSTEM_TICK_STREAM_ID);
+    }
+
+    /**
+     * Estimates the count of a custom user id from the global sketch and logs it
+     *
+     * @param userId the user id to estimate
+     */
+    private void logUserIdEstimate(long userId) {
+        long count = globalSketch.estimateCount(userId);
+        LOG.info("User id [" + userId + "] count [" + count + "]");
     }
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
-
+        outputFieldsDeclarer.declareStream(StreamConfig.GLOBAL_TOP_K_STREAM, new Fields("window", "topK", "complete", "dimension"));
+        outputFieldsDeclarer.declareStream(StreamConfig.THRESHOLD_STREAM, new Fields("window", "threshold"));
     }
 
     @Override
     public Map<String, Object> getComponentConfiguration() {
-        return null;
+        Config conf = new Config();
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+        return conf;
     }
 
 
     @Override
     public void cleanup() {
+        if (queryServer != null) {
+            queryServer.stop();
+        }
     }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package gr.tuc.dkap.cms.storm;
 
 import backtype.storm.Config;
 import backtype.storm.Constants;
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
@@ -9,32 +10,103 @@ import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
-import com.google.gson.Gson;
 import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import gr.tuc.dkap.cms.storm.utils.HeavyHitterCache;
+import gr.tuc.dkap.cms.storm.utils.TopKPayload;
+import gr.tuc.dkap.cms.storm.utils.WindowedCountMinSketch;
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
  * A bolt that setups CountMinSketch and adds new tuples using CMS algorithm.
- * When a tick value arrives it sends the frequency of the tick value
+ * When a tick value arrives it sends the frequency of the tick value.
+ * When a window is configured, it counts only the last window and sends the results of each window when it slides.
+ * When snapshots are enabled, it also sends its sketch periodically, so the aggregator can answer live queries.
+ * Top K results only include the user ids that can still enter the global top K, when the aggregator has sent
+ * the threshold of the window. With skew aware grouping no threshold is sent, since the count of a heavy user id is
+ * split between two bolts and none of them can tell from its own part whether the sum reaches the threshold.
+ * Besides the comments of each user, it can count other dimensions of the rows in the same pass, each in its own
+ * sketch with its own top K results: the total score of each user and the comments of each post.
+ * With a front cache, the comments of the hottest user ids are counted exactly in a small cache and reach the sketch
+ * only when they are evicted or before the sketch is read as a whole.
+ * When checkpointing, it periodically writes the sketches of all dimensions and the input positions of the spout
+ * tasks it has counted up to, and restores them when it starts. A checkpoint is taken once every spout task has sent
+ * its next position, holding the tuples that follow it, so the sketches count exactly the rows up to the positions.
+ * Each tuple of rows carries the lines read up to its rows, so rows that a spout task sends again up to the
+ * position counted up to are ignored. Rows of a spout task are only counted once it sends a position counted up to:
+ * a spout task that did not restart with this task is asked to send its rows again from there, and its rows until
+ * then are ignored.
+ * Only checkpoints of the same input are restored, and the checkpoint taken at eof is marked complete, so the next
+ * run after all tasks have completed counts from the start.
  */
 public class CMSBolt implements IRichBolt {
     private static final Logger LOG = Logger.getLogger(CMSBolt.class);
+    private static final int ADD_LATENCY_SAMPLE_RATE = 64; // record the latency of one add out of this many
+    private static final String COUNTER_STORAGE_MAPPED = "MAPPED";
+    private static final long REWIND_REQUEST_MILLIS = 10000L; // wait for a spout task before asking it again
 
-    private CountMinSketch cms;
+    private WindowedCountMinSketch cms; // comments of each user
+    private Dimension[] dimensions = new Dimension[0]; // other dimensions counted from the rows
+    private WindowedCountMinSketch[] dimensionSketches = new WindowedCountMinSketch[0];
+    private HeavyHitterCache frontCache; // null when the front cache is disabled
     private OutputCollector collector;
     private int topK = 100;
-    private Long processedTuples = 0L;
-    private Long startTime;
-    private Boolean eof = false;
+    private int topKCapacity = 1000;
+    private long processedTuples = 0L;
+    private RateMetric tuplesPerSecond; // user ids counted per second
+    private LatencyMetric addLatency;
+    private LatencyMetric estimateLatency;
+    private long startTime;
+    private boolean eof = false;
+    private int totalSpoutTasks = 1; // number of spout tasks that send eof on TickStream
+    private int spoutTasksAtEof = 0; // number of spout tasks that have sent eof
+    private List<Long> pendingUserIds = new ArrayList<Long>(); // custom user ids received before eof
+    // custom user ids received, which a spout task sends again with eof after reading rows again
+    private Set<Long> customUserIds = new HashSet<Long>();
     private String boltId = "test";
+    private String aggregationMode = CMSTopology.AGGREGATION_TOP_K;
+    private long windowSlideMillis = 0L; // 0 when counting the whole stream
+    private long currentWindow = 0L; // id of the window being counted
+    private long thresholdWindow = -1L; // id of the window of the threshold
+    private long threshold = 0L; // min count a user id needs to enter the global top K of thresholdWindow
+    private int taskId; // id of this task, identifies the snapshots of this bolt
+    private long snapshotIntervalMillis = 0L; // 0 when snapshots are disabled
+    private long lastSnapshotTime;
+    private File checkpointFile; // null when checkpointing is disabled
+    private String input; // identity of the input the checkpoints belong to
+    private CheckpointWriter checkpointWriter;
+    private long checkpointIntervalMillis;
+    private long lastCheckpointTime;
+    private Map<Integer, Integer> spoutTaskIndexes = new HashMap<Integer, Integer>(); // spout task id -> index
+    private long[] spoutOffsets; // per spout task index, input offset counted up to
+    private long[] spoutLines; // per spout task index, lines counted up to
+    // per spout task index, true once the spout task sends its rows from a position counted up to
+    private boolean[] spoutSynced;
+    private long[] lastRewindRequest; // per spout task index, time of the last request to send the rows again
+    private boolean[] spoutAtEof; // per spout task index, true once the spout task has sent eof
+    private boolean checkpointDue; // a checkpoint waits for the next position of every spout task
+    private boolean[] spoutAligned; // per spout task index, true once at the position of the pending checkpoint
+    private List<Tuple> heldTuples; // tuples of the spout tasks after their position, counted after the checkpoint
+    private String checkpointDir;
+    private int taskIndex; // index of this task, names its checkpoint and its requests to send rows again
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
-        outputFieldsDeclarer.declareStream(StreamConfig.TOP_K_STREAM, new Fields("topK"));
+        outputFieldsDeclarer.declareStream(StreamConfig.TOP_K_STREAM, new Fields("window", "topK", "dimension"));
         outputFieldsDeclarer.declareStream(StreamConfig.CUSTOM_USER_IDS_COUNT_STREAM, new Fields("userId", "count"));
+        outputFieldsDeclarer.declareStream(StreamConfig.SKETCH_STREAM, new Fields("window", "sketch", "dimension"));
+        outputFieldsDeclarer.declareStream(StreamConfig.SNAPSHOT_STREAM, new Fields("taskId", "sketch"));
     }
 
     @Override
@@ -50,18 +122,278 @@ public class CMSBolt implements IRichBolt {
         double errorLimit = Double.parseDouble(map.get("errorLimit").toString());
         double errorProbLimit = Double.parseDouble(map.get("errorProbabilityLimit").toString());
         topK = Integer.parseInt(map.get("topK").toString());
-        cms = new CountMinSketch(errorLimit, errorProbLimit);
+        topKCapacity = Integer.parseInt(map.get("topKCapacity").toString());
+        aggregationMode = map.get("aggregationMode").toString();
         boltId = UUID.randomUUID().toString();
         collector = outputCollector;
         startTime = System.currentTimeMillis();
+        totalSpoutTasks = topologyContext.getComponentTasks(CMSTopology.SPOUT_ID).size();
+        taskId = topologyContext.getThisTaskId();
+        snapshotIntervalMillis = Integer.parseInt(map.get("snapshotIntervalSecs").toString()) * 1000L;
+        lastSnapshotTime = startTime;
+
+        // Setup metrics, reported every metrics bucket to the metrics consumers of the topology
+        int metricsBucketSecs = Integer.parseInt(map.get("metricsBucketSecs").toString());
+        tuplesPerSecond = topologyContext.registerMetric("tuplesPerSecond", new RateMetric(), metricsBucketSecs);
+        addLatency = topologyContext.registerMetric("addLatencyNanos", new LatencyMetric(ADD_LATENCY_SAMPLE_RATE),
+                metricsBucketSecs);
+        estimateLatency = topologyContext.registerMetric("estimateLatencyNanos", new LatencyMetric(1), metricsBucketSecs);
+        topologyContext.registerMetric("sketchFillRatio", new IMetric() {
+            @Override
+            public Object getValueAndReset() {
+                return cms.getFillRatio();
+            }
+        }, metricsBucketSecs);
+        topologyContext.registerMetric("topKSize", new IMetric() {
+            @Override
+            public Object getValueAndReset() {
+                return cms.getTopKValuesCount();
+            }
+        }, metricsBucketSecs);
+
+        // Setup window: the window length is split in panes of one slide each, a tumbling window has one pane
+        int windowLengthSecs = Integer.parseInt(map.get("windowLengthSecs").toString());
+        int windowSlideSecs = Integer.parseInt(map.get("windowSlideSecs").toString());
+        int panes = 1;
+        if (windowLengthSecs > 0) {
+            if (windowSlideSecs <= 0 || windowSlideSecs > windowLengthSecs) {
+                windowSlideSecs = windowLengthSecs;
+            }
+            panes = windowLengthSecs / windowSlideSecs;
+            windowSlideMillis = windowSlideSecs * 1000L;
+            currentWindow = startTime / windowSlideMillis;
+            LOG.info(boltId + " -> Counting windows of [" + windowLengthSecs + "] seconds sliding every ["
+                    + windowSlideSecs + "] seconds");
+        }
+        cms = createSketch(map, topologyContext.getThisTaskIndex(), panes, "");
+        setupDimensions(map, topologyContext.getThisTaskIndex(), panes);
+
+        // Setup checkpointing, restoring the last checkpoint of this task index
+        List<Integer> spoutTasks = UserIdGrouping.sortedTasks(topologyContext.getComponentTasks(CMSTopology.SPOUT_ID));
+        for (int i = 0; i < spoutTasks.size(); i++) {
+            spoutTaskIndexes.put(spoutTasks.get(i), i);
+        }
+        spoutOffsets = new long[spoutTasks.size()];
+        spoutLines = new long[spoutTasks.size()];
+        spoutSynced = new boolean[spoutTasks.size()];
+        lastRewindRequest = new long[spoutTasks.size()];
+        spoutAtEof = new boolean[spoutTasks.size()];
+        spoutAligned = new boolean[spoutTasks.size()];
+        heldTuples = new ArrayList<Tuple>();
+        taskIndex = topologyContext.getThisTaskIndex();
+        checkpointDir = map.get("checkpointDir").toString();
+        // without checkpoints the rows are counted from the start of the run of every spout task
+        Arrays.fill(spoutSynced, checkpointDir.isEmpty());
+        Arrays.fill(lastRewindRequest, startTime);
+        if (!checkpointDir.isEmpty()) {
+            checkpointFile = BoltCheckpoint.file(checkpointDir, taskIndex);
+            checkpointWriter = new CheckpointWriter();
+            checkpointIntervalMillis = Integer.parseInt(map.get("checkpointIntervalSecs").toString()) * 1000L;
+            lastCheckpointTime = startTime;
+            input = BoltCheckpoint.identity(map);
+            if (BoltCheckpoint.isRunComplete(checkpointDir,
+                    topologyContext.getComponentTasks(CMSTopology.CMS_BOLT_ID).size(), input)) {
+                LOG.info(boltId + " -> The run of the checkpoints in [" + checkpointDir + "] has completed, "
+                        + "counting from the start");
+            } else {
+                restoreCheckpoint(panes);
+            }
+        }
+
+        CountMinSketch.UpdateMode updateMode = CountMinSketch.UpdateMode.valueOf(map.get("updateMode").toString());
+        CountMinSketch.Estimator estimator = CountMinSketch.Estimator.valueOf(map.get("estimator").toString());
+        cms.setUpdateMode(updateMode);
+        cms.setEstimator(estimator);
+        for (WindowedCountMinSketch dimensionSketch : dimensionSketches) {
+            dimensionSketch.setUpdateMode(updateMode);
+            dimensionSketch.setEstimator(estimator);
+        }
+
+        // Setup the front cache of the restored sketch
+        int frontCacheSize = Integer.parseInt(map.get("frontCacheSize").toString());
+        if (frontCacheSize > 0) {
+            frontCache = new HeavyHitterCache(frontCacheSize, cms);
+            topologyContext.registerMetric("frontCacheHitRatio", new IMetric() {
+                @Override
+                public Object getValueAndReset() {
+                    return frontCache.getAndResetHitRatio();
+                }
+            }, metricsBucketSecs);
+        }
+    }
+
+    /**
+     * Create a sketch for each configured dimension other than the comments of each user, which are always
+     * counted. Only rows sent one per tuple carry the post id and score, so other dimensions are not counted from
+     * batches or combined counts, nor when aggregating sketches.
+     *
+     * @param map       the topology config
+     * @param taskIndex the index of this task
+     * @param panes     the number of panes
+     */
+    private void setupDimensions(Map map, int taskIndex, int panes) {
+        List<Dimension> configured = new ArrayList<Dimension>();
+        for (String id : map.get("dimensions").toString().split(",")) {
+            Dimension dimension = Dimension.fromId(id.trim());
+            if (dimension != Dimension.USER_COMMENTS && !configured.contains(dimension)) {
+                configured.add(dimension);
+            }
+        }
+        if (configured.isEmpty()) {
+            return;
+        }
+        if (Integer.parseInt(map.get("batchSize").toString()) > 0
+                || Integer.parseInt(map.get("combinerSize").toString()) > 0
+                || CMSTopology.AGGREGATION_SKETCH.equals(aggregationMode)) {
+            LOG.warn(boltId + " -> Dimensions " + configured + " need one row per tuple and top K aggregation, "
+                    + "counting user comments only");
+            return;
+        }
+        dimensions = configured.toArray(new Dimension[configured.size()]);
+        dimensionSketches = new WindowedCountMinSketch[dimensions.length];
+        for (int i = 0; i < dimensions.length; i++) {
+            dimensionSketches[i] = createSketch(map, taskIndex, panes, "-" + dimensions[i].getId());
+        }
+        LOG.info(boltId + " -> Counting dimensions " + configured + " besides user comments");
+    }
+
+    /**
+     * Create the windowed sketch with its counters in the configured storage: on the heap, in direct memory, or
+     * for a mapped storage, the first pane in the counters file of this task index. The counts a mapped file kept
+     * from the previous run are reset, since the spout tasks only skip the rows that a checkpoint has counted; a
+     * restored checkpoint then fills the counters again.
+     *
+     * @param map        the topology config
+     * @param taskIndex  the index of this task
+     * @param panes      the number of panes
+     * @param fileSuffix the suffix of the counters file of the sketch, to tell apart the sketches of the task
+     * @return the sketch
+     */
+    private WindowedCountMinSketch createSketch(Map map, int taskIndex, int panes, String fileSuffix) {
+        double errorLimit = Double.parseDouble(map.get("errorLimit").toString());
+        double errorProbLimit = Double.parseDouble(map.get("errorProbabilityLimit").toString());
+        CountMinSketch.HashScheme hashScheme = CountMinSketch.HashScheme.valueOf(map.get("hashScheme").toString());
+        String storage = map.get("counterStorage").toString();
+        if (!COUNTER_STORAGE_MAPPED.equals(storage)) {
+            return new WindowedCountMinSketch(new CountMinSketch(errorLimit, errorProbLimit, topKCapacity, hashScheme,
+                    CountMinSketch.Storage.valueOf(storage)), panes);
+        }
+        File file = new File(map.get("counterStoreDir").toString(),
+                CMSTopology.CMS_BOLT_ID + "-" + taskIndex + fileSuffix + ".counters");
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create counter store directory [" + directory + "]");
+            }
+            CountMinSketch firstPane = CountMinSketch.mapped(errorLimit, errorProbLimit, topKCapacity, hashScheme, file);
+            if (firstPane.getTotalCount() > 0) {
+                LOG.info(boltId + " -> Resetting [" + firstPane.getTotalCount() + "] counts of the last run in [" + file
+                        + "]");
+                firstPane.clear();
+            }
+            return new WindowedCountMinSketch(firstPane, panes);
+        } catch (IOException e) {
+            LOG.warn(boltId + " -> Cannot map counters to [" + file + "], counting in direct memory", e);
+            return new WindowedCountMinSketch(new CountMinSketch(errorLimit, errorProbLimit, topKCapacity, hashScheme,
+                    CountMinSketch.Storage.DIRECT), panes);
+        }
+    }
+
+    /**
+     * Restore the sketches, window and spout positions of the checkpoint of this task, if there is one of the same
+     * input that matches the configured window and spout tasks. The complete checkpoint of a run that has not
+     * completed on all tasks is restored too: its positions are at the end of the input.
+     *
+     * @param panes the configured number of panes
+     */
+    private void restoreCheckpoint(int panes) {
+        try {
+            BoltCheckpoint checkpoint = BoltCheckpoint.read(checkpointFile);
+            if (checkpoint == null) {
+                return;
+            }
+            if (!checkpoint.isOf(input)) {
+                LOG.warn(boltId + " -> Ignoring checkpoint [" + checkpointFile + "] of a different input");
+                return;
+            }
+            WindowedCountMinSketch restored = checkpoint.getSketch(Dimension.USER_COMMENTS.getId());
+            if (restored == null || restored.getPaneCount() != panes
+                    || checkpoint.getSpoutTasks() != spoutOffsets.length) {
+                LOG.warn(boltId + " -> Ignoring checkpoint [" + checkpointFile + "] of a different topology");
+                return;
+            }
+            // rows up to the restored positions are skipped, so every dimension must be restored with them
+            WindowedCountMinSketch[] restoredDimensions = new WindowedCountMinSketch[dimensions.length];
+            for (int i = 0; i < dimensions.length; i++) {
+                restoredDimensions[i] = checkpoint.getSketch(dimensions[i].getId());
+                if (restoredDimensions[i] == null || restoredDimensions[i].getPaneCount() != panes) {
+                    LOG.warn(boltId + " -> Ignoring checkpoint [" + checkpointFile + "] without dimension ["
+                            + dimensions[i].getId() + "]");
+                    return;
+                }
+            }
+            // the restored counts are copied into the counters of the configured storage
+            cms.copyFrom(restored);
+            for (int i = 0; i < dimensions.length; i++) {
+                dimensionSketches[i].copyFrom(restoredDimensions[i]);
+            }
+            if (windowSlideMillis > 0) {
+                currentWindow = checkpoint.getWindow();
+            }
+            processedTuples = checkpoint.getProcessedTuples();
+            for (int i = 0; i < spoutOffsets.length; i++) {
+                spoutOffsets[i] = checkpoint.getSpoutOffset(i);
+                spoutLines[i] = checkpoint.getSpoutLines(i);
+            }
+            LOG.info(boltId + " -> Restored [" + processedTuples + "] tuples from checkpoint [" + checkpointFile + "]");
+        } catch (IOException e) {
+            LOG.warn(boltId + " -> Cannot read checkpoint [" + checkpointFile + "], counting from the start", e);
+        } catch (IllegalArgumentException e) {
+            LOG.warn(boltId + " -> Cannot read checkpoint [" + checkpointFile + "], counting from the start", e);
+        }
     }
 
     @Override
     public void execute(Tuple tuple) {
+        // Tuples of a spout task after the position of a pending checkpoint are counted once it is taken
+        Integer spoutTaskIndex = spoutTaskIndexes.get(tuple.getSourceTask());
+        if (checkpointDue && spoutTaskIndex != null && spoutAligned[spoutTaskIndex]) {
+            heldTuples.add(tuple);
+        } else {
+            process(tuple);
+            if (checkpointDue) {
+                takeAlignedCheckpoint();
+            }
+        }
+        // rows are acked once counted or held, so that an anchored spout replays only the rows that were lost; a
+        // task that restarts asks for the rows after its checkpoint again
+        collector.ack(tuple);
+    }
+
+    private void process(Tuple tuple) {
 
-        // If tick tuple, just log statistics for bolt
+        // If tick tuple, send results of the window if it slides and log statistics for bolt
         if (isTickTuple(tuple)) {
             if (eof) return;
+            if (windowSlideMillis > 0) {
+                long window = System.currentTimeMillis() / windowSlideMillis;
+                if (window > currentWindow) {
+                    slideTo(window);
+                }
+            }
+            if (snapshotIntervalMillis > 0 && System.currentTimeMillis() - lastSnapshotTime >= snapshotIntervalMillis) {
+                emitSnapshot();
+            }
+            if (checkpointFile != null && !checkpointDue
+                    && System.currentTimeMillis() - lastCheckpointTime >= checkpointIntervalMillis) {
+                startCheckpoint();
+            }
+            // a spout task that has not sent a position counted up to may have reached eof, and sends nothing more
+            for (int i = 0; i < spoutSynced.length; i++) {
+                if (!spoutSynced[i]) {
+                    requestRewind(i);
+                }
+            }
             double processedTuplesPerSecond = ((double) processedTuples / ((System.currentTimeMillis() - startTime))) * 1000;
             LOG.info(boltId + " -> Total processed tuples [" + processedTuples + "]");
             LOG.info(boltId + " -> Total topK tuples in queue [" + cms.getTopKValuesCount() + "]");
@@ -69,44 +401,342 @@ public class CMSBolt implements IRichBolt {
             return;
         }
 
-        // If message from tick stream, send top k results to TopKStream
+        // If message from tick stream and all spout tasks are at eof, send results of the current window
+        // A spout task sends eof again after reading rows again, and eof before rows that are not counted yet is
+        // sent again after them
         if (tuple.getSourceStreamId().equals(StreamConfig.TICK_STREAM)) {
-            LOG.info("Received message from TickStream. Sending top K results...");
-            Map<Object, Long> topKValues = cms.getTopK(topK);
-            collector.emit(StreamConfig.TOP_K_STREAM, new Values(serializeTopKValuesAsOneMessage(topKValues)));
-            eof = true;
+            int spoutTaskIndex = spoutTaskIndexes.get(tuple.getSourceTask());
+            if (spoutAtEof[spoutTaskIndex] || !spoutSynced[spoutTaskIndex]) {
+                return;
+            }
+            spoutAtEof[spoutTaskIndex] = true;
+            spoutAligned[spoutTaskIndex] = true;
+            spoutTasksAtEof++;
+            if (spoutTasksAtEof == totalSpoutTasks) {
+                LOG.info("Received message from TickStream. Sending results...");
+                emitWindow(currentWindow);
+                if (snapshotIntervalMillis > 0) {
+                    emitSnapshot();
+                }
+                if (checkpointFile != null) {
+                    // every spout task has sent its last position, so no tuple is held
+                    checkpointDue = false;
+                    checkpoint(true);
+                }
+                eof = true;
+                for (long userId : pendingUserIds) {
+                    emitUserIdEstimate(userId);
+                }
+                pendingUserIds.clear();
+            }
         }
 
-        // If a custom user id is received, estimate it's frequency and emit frequency to next stream
+        // If a custom user id is received, estimate it's frequency at eof and emit frequency to next stream
         if (tuple.getSourceStreamId().equals(StreamConfig.CUSTOM_USER_IDS_STREAM)) {
-            String userId = tuple.getStringByField("userId");
-            try {
-                Long estimatedCount = cms.estimateCount(Long.parseLong(userId));
-                collector.emit(StreamConfig.CUSTOM_USER_IDS_COUNT_STREAM, new Values(userId, estimatedCount));
-            } catch (Exception e) {
-                LOG.trace(e.getMessage());
+            long userId = tuple.getLongByField("userId");
+            if (!customUserIds.add(userId)) {
+                return;
+            }
+            if (eof) {
+                emitUserIdEstimate(userId);
+            } else {
+                pendingUserIds.add(userId);
+            }
+        }
+
+        // If the threshold of a window is received, keep the highest one
+        if (tuple.getSourceStreamId().equals(StreamConfig.THRESHOLD_STREAM)) {
+            long window = tuple.getLongByField("window");
+            long windowThreshold = tuple.getLongByField("threshold");
+            if (window != thresholdWindow || windowThreshold > threshold) {
+                thresholdWindow = window;
+                threshold = windowThreshold;
             }
+            return;
+        }
+
+        // If an input position is received, the rows of the spout task before it have been counted, unless the
+        // spout task has read rows past the restored position that this task has not received
+        if (tuple.getSourceStreamId().equals(StreamConfig.OFFSET_STREAM)) {
+            int spoutTaskIndex = spoutTaskIndexes.get(tuple.getSourceTask());
+            long lines = tuple.getLongByField("lines");
+            if (lines <= spoutLines[spoutTaskIndex]) {
+                spoutSynced[spoutTaskIndex] = true;
+            } else if (spoutSynced[spoutTaskIndex]) {
+                spoutOffsets[spoutTaskIndex] = tuple.getLongByField("offset");
+                spoutLines[spoutTaskIndex] = lines;
+            } else {
+                requestRewind(spoutTaskIndex);
+            }
+            spoutAligned[spoutTaskIndex] |= spoutSynced[spoutTaskIndex];
+        }
+
+        // Rows that the spout task sends again, up to the position counted up to, are already counted, and rows
+        // after a gap are counted when the spout task sends them again
+        if ((tuple.getSourceStreamId().equals(StreamConfig.BATCH_STREAM)
+                || tuple.getSourceStreamId().equals(StreamConfig.COUNTS_STREAM)
+                || tuple.getSourceStreamId().equals(StreamConfig.DATA_STREAM)) && isSkipped(tuple)) {
+            return;
+        }
+
+        // If a batch of user ids is received, update their counts in one loop
+        if (tuple.getSourceStreamId().equals(StreamConfig.BATCH_STREAM)) {
+            long[] userIds = (long[]) tuple.getValueByField("userIds");
+            for (long userId : userIds) {
+                add(userId, 1);
+            }
+            processedTuples += userIds.length;
+            tuplesPerSecond.incrBy(userIds.length);
+        }
+
+        // If a combined user id is received, add all its occurrences at once
+        if (tuple.getSourceStreamId().equals(StreamConfig.COUNTS_STREAM)) {
+            long count = tuple.getLongByField("count");
+            processedTuples += count;
+            tuplesPerSecond.incrBy(count);
+            add(tuple.getLongByField("userId"), count);
         }
 
         // If user id is received, update it's count using count min sketch
         if (tuple.getSourceStreamId().equals(StreamConfig.DATA_STREAM)) {
             processedTuples++;
-            String userId = tuple.getStringByField("userId");
-            try {
-                cms.add(Long.parseLong(userId));
-            } catch (Exception e) {
+            tuplesPerSecond.incrBy(1);
+            long userId = tuple.getLongByField("userId");
+            add(userId, 1);
+            if (dimensions.length > 0) {
+                long postId = tuple.getLongByField("postId");
+                long score = tuple.getLongByField("score");
+                for (int i = 0; i < dimensions.length; i++) {
+                    long weight = dimensions[i].weight(score);
+                    if (weight > 0) {
+                        dimensionSketches[i].add(dimensions[i].item(postId, userId), weight);
+                    }
+                }
             }
         }
 
     }
 
     /**
-     * Creates a json list with all the topK values, so they all are in one message
+     * Sends the results of the current window and rotates the sketches once per slide up to the given window.
+     * When several slides have passed since the last tick, e.g. after a long pause, the windows in between are
+     * sent too while they still hold counted panes; once every pane has been rotated out the remaining windows are
+     * empty and are skipped.
      *
-     * @param topKValues the topK values map
+     * @param window the id of the window of the current time
      */
-    private String serializeTopKValuesAsOneMessage(Map<Object, Long> topKValues) {
-        return new Gson().toJson(topKValues);
+    private void slideTo(long window) {
+        emitWindow(currentWindow);
+        long slides = Math.min(window - currentWindow, cms.getPaneCount());
+        for (long slide = 1; slide <= slides; slide++) {
+            cms.rotate();
+            for (WindowedCountMinSketch dimensionSketch : dimensionSketches) {
+                dimensionSketch.rotate();
+            }
+            if (slide < slides) {
+                emitWindow(currentWindow + slide);
+            }
+        }
+        if (window - currentWindow > 1) {
+            LOG.warn(boltId + " -> Window slid [" + (window - currentWindow) + "] times since the last tick");
+        }
+        currentWindow = window;
+    }
+
+    /**
+     * Adds occurrences of a user id to the sketch, recording the latency of a sample of the adds
+     *
+     * @param userId the user id
+     * @param count  the occurrences to add
+     */
+    private void add(long userId, long count) {
+        if (addLatency.shouldSample()) {
+            long start = System.nanoTime();
+            count(userId, count);
+            addLatency.recordSince(start);
+        } else {
+            count(userId, count);
+        }
+    }
+
+    /**
+     * Adds occurrences of a user id to the front cache, if enabled, else to the sketch
+     */
+    private void count(long userId, long count) {
+        if (frontCache != null) {
+            frontCache.add(userId, count);
+        } else {
+            cms.add(userId, count);
+        }
+    }
+
+    /**
+     * Adds the counts of the front cache, if enabled, to the sketch, before the sketch is read as a whole
+     */
+    private void flushFrontCache() {
+        if (frontCache != null) {
+            frontCache.flush();
+        }
+    }
+
+    /**
+     * Estimates the frequency of a custom user id and sends it to CustomUserIdsCountStream
+     *
+     * @param userId the custom user id
+     */
+    private void emitUserIdEstimate(long userId) {
+        long start = System.nanoTime();
+        long estimatedCount = frontCache != null ? frontCache.estimateCount(userId) : cms.estimateCount(userId);
+        estimateLatency.recordSince(start);
+        collector.emit(StreamConfig.CUSTOM_USER_IDS_COUNT_STREAM, new Values(userId, estimatedCount));
+    }
+
+    /**
+     * Sends the top K results of the window of each dimension to TopKStream, or the whole sketch of the window to
+     * SketchStream. The sketch of a dimension that is not partitioned by user id is always sent whole, since the
+     * count of each of its items is split between all bolts.
+     *
+     * @param window the id of the window
+     */
+    private void emitWindow(long window) {
+        flushFrontCache();
+        if (CMSTopology.AGGREGATION_SKETCH.equals(aggregationMode)) {
+            collector.emit(StreamConfig.SKETCH_STREAM, new Values(window, cms.toCountMinSketch().toByteArray(),
+                    Dimension.USER_COMMENTS.getId()));
+        } else {
+            Map<Long, Long> topKValues = cms.getTopK(topK);
+            if (window == thresholdWindow) {
+                topKValues = candidates(topKValues);
+            }
+            collector.emit(StreamConfig.TOP_K_STREAM, new Values(window, TopKPayload.of(topKValues),
+                    Dimension.USER_COMMENTS.getId()));
+            for (int i = 0; i < dimensions.length; i++) {
+                if (dimensions[i].isPartitioned()) {
+                    collector.emit(StreamConfig.TOP_K_STREAM, new Values(window,
+                            TopKPayload.of(dimensionSketches[i].getTopK(topK)), dimensions[i].getId()));
+                } else {
+                    collector.emit(StreamConfig.SKETCH_STREAM, new Values(window,
+                            dimensionSketches[i].toCountMinSketch().toByteArray(), dimensions[i].getId()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param tuple a tuple with rows of a spout task
+     * @return true if the rows are before the position of the spout task counted up to, so they are already
+     * counted, or the spout task has not sent a position counted up to yet, so rows before them may be missing
+     */
+    private boolean isSkipped(Tuple tuple) {
+        if (checkpointFile == null) {
+            return false;
+        }
+        int spoutTaskIndex = spoutTaskIndexes.get(tuple.getSourceTask());
+        if (!spoutSynced[spoutTaskIndex]) {
+            requestRewind(spoutTaskIndex);
+            return true;
+        }
+        return tuple.getLongByField("lines") <= spoutLines[spoutTaskIndex];
+    }
+
+    /**
+     * Ask a spout task that has read past the position counted up to, because this task has restarted and the
+     * spout task has not, to send its rows again from that position. The request is repeated until the spout task
+     * sends the position, in case the spout task restarts and drops it.
+     *
+     * @param spoutTaskIndex the index of the spout task
+     */
+    private void requestRewind(int spoutTaskIndex) {
+        long now = System.currentTimeMillis();
+        if (now - lastRewindRequest[spoutTaskIndex] < REWIND_REQUEST_MILLIS) {
+            return;
+        }
+        lastRewindRequest[spoutTaskIndex] = now;
+        LOG.warn(boltId + " -> Asking spout task [" + spoutTaskIndex + "] to send its rows again after ["
+                + spoutLines[spoutTaskIndex] + "] lines");
+        try {
+            BoltCheckpoint.requestRewind(checkpointDir, taskIndex, spoutTaskIndex, spoutOffsets[spoutTaskIndex],
+                    spoutLines[spoutTaskIndex]);
+        } catch (IOException e) {
+            LOG.error(boltId + " -> Cannot ask spout task [" + spoutTaskIndex + "] to send its rows again", e);
+        }
+    }
+
+    /**
+     * Start a checkpoint, taken once every spout task has sent its next position, has reached eof, or has not sent
+     * a position counted up to yet. Tuples of a spout task after its position are held until the checkpoint is
+     * taken, so the sketches of the checkpoint count exactly the rows up to the positions of the checkpoint.
+     */
+    private void startCheckpoint() {
+        checkpointDue = true;
+        for (int i = 0; i < spoutAligned.length; i++) {
+            spoutAligned[i] = spoutAtEof[i] || !spoutSynced[i];
+        }
+        takeAlignedCheckpoint();
+    }
+
+    /**
+     * Take the pending checkpoint if every spout task is at its position, then count the held tuples
+     */
+    private void takeAlignedCheckpoint() {
+        for (boolean aligned : spoutAligned) {
+            if (!aligned) {
+                return;
+            }
+        }
+        checkpointDue = false;
+        checkpoint(false);
+        List<Tuple> held = heldTuples;
+        heldTuples = new ArrayList<Tuple>();
+        for (Tuple tuple : held) {
+            process(tuple);
+        }
+    }
+
+    /**
+     * Copies the sketch of each dimension, the window and the spout positions, and hands them to the checkpoint
+     * writer, which encodes them and writes them to the checkpoint file in the background
+     *
+     * @param complete true if all spout tasks have reached eof
+     */
+    private void checkpoint(boolean complete) {
+        flushFrontCache();
+        Map<String, WindowedCountMinSketch> sketches = new LinkedHashMap<String, WindowedCountMinSketch>();
+        sketches.put(Dimension.USER_COMMENTS.getId(), cms.copy());
+        for (int i = 0; i < dimensions.length; i++) {
+            sketches.put(dimensions[i].getId(), dimensionSketches[i].copy());
+        }
+        BoltCheckpoint checkpoint = new BoltCheckpoint(input, complete, currentWindow, processedTuples,
+                spoutOffsets.clone(), spoutLines.clone(), sketches);
+        checkpointWriter.write(checkpointFile, checkpoint);
+        lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * A user id can enter the global top K only if its global count reaches the threshold, and its global count is
+     * the count of this bolt, since thresholds are only sent when each user id is counted by a single bolt
+     *
+     * @param topKValues the top K results, sorted by count
+     * @return the results that can still enter the global top K
+     */
+    private Map<Long, Long> candidates(Map<Long, Long> topKValues) {
+        Map<Long, Long> candidates = new LinkedHashMap<Long, Long>();
+        for (Map.Entry<Long, Long> entry : topKValues.entrySet()) {
+            if (entry.getValue() < threshold) {
+                break;
+            }
+            candidates.put(entry.getKey(), entry.getValue());
+        }
+        return candidates;
+    }
+
+    /**
+     * Sends the sketch of the current window to SnapshotStream, to be queried while the topology runs
+     */
+    private void emitSnapshot() {
+        flushFrontCache();
+        collector.emit(StreamConfig.SNAPSHOT_STREAM, new Values(taskId, cms.toCountMinSketch().toByteArray()));
+        lastSnapshotTime = System.currentTimeMillis();
     }
 
     /**
@@ -122,7 +752,13 @@ public class CMSBolt implements IRichBolt {
 
     @Override
     public void cleanup() {
-
+        cms.close();
+        for (WindowedCountMinSketch dimensionSketch : dimensionSketches) {
+            dimensionSketch.close();
+        }
+        if (checkpointWriter != null) {
+            checkpointWriter.close();
+        }
     }
 
 }
\ No newline at end of file
@@ -1,39 +1,106 @@
 package gr.tuc.dkap.cms.storm;
 
+import backtype.storm.metric.api.CountMetric;
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichSpout;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Values;
+import gr.tuc.dkap.cms.storm.utils.CommentRowParser;
+import gr.tuc.dkap.cms.storm.utils.LongLongHashMap;
+import gr.tuc.dkap.cms.storm.utils.MappedLineReader;
+import gr.tuc.dkap.cms.storm.utils.TokenBucket;
 import org.apache.log4j.Logger;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Spout that reads data from URL and emits them to collector
+ * Spout that reads data from URL and emits them to collector.
+ * When a local data file is given it reads it through memory mapped windows instead, and each spout task reads its
+ * own section of the file, so several spout tasks can read the file in parallel.
+ * In batch mode it groups the user ids of each CMSBolt task and emits them directly to the task as one tuple.
+ * In combiner mode it counts the occurrences of each user id in a bounded map and emits each user id once with its
+ * count, when the map is full or the flush interval has passed, so repeats of heavy users cost one tuple.
+ * When checkpointing, it sends its input position to all CMSBolt tasks every few lines, and resumes reading from
+ * the oldest position that all CMSBolt tasks have checkpointed for the same input, unless all of them have
+ * completed it. Each tuple carries the lines read up to its rows, so a CMSBolt task can tell the rows it has counted.
+ * A CMSBolt task that restarts alone asks through the checkpoint directory for the rows after its checkpoint, and
+ * the spout task reads again from there once it reaches its next input position.
+ * Each call of nextTuple emits a bounded number of rows and returns, so the executor can process acks and
+ * backpressure between calls. When a max rate is given, a token bucket decides how many rows each call can emit.
+ * In anchored mode, each row is emitted with its line number as message id and kept until it is acked, so a row that
+ * fails or times out is emitted again, and topology.max.spout.pending bounds the rows in flight. When also
+ * checkpointing, an input position is sent only once every row before it is acked, and no row after it is read
+ * until then, so a CMSBolt task never checkpoints a position past a row that may still be lost.
  */
 public class CMSSpout implements IRichSpout {
     private static final Logger LOG = Logger.getLogger(CMSSpout.class);
-    private static final int LINES_TO_READ = 100000;
-    private static final String PREDEFINED_IDS = "22629,1923,30527,29689,32790,1311,19512,4083,861,11354,16989,48281" +
+    private static final int LINES_TO_READ = 100000; // lines of the input read, including lines before a resume
+    private static final int OFFSET_MARKER_LINES = 10000; // lines between input positions sent when checkpointing
+    private static final long REWIND_CHECK_MILLIS = 1000L; // how often requests to read rows again are checked
+    static final String PREDEFINED_IDS = "22629,1923,30527,29689,32790,1311,19512,4083,861,11354,16989,48281" +
             "13376,12881,16800,8049,4903,5291,39992,16668,26130,1084,20055,23909,28804,3827,20135,1329401,10326,36641";
 
     private BufferedReader inputFileReader;
+    private MappedLineReader mappedFileReader; // reader of the local data file, if given instead of the URL
+    private boolean emitsCustomUserIds; // only the first spout task sends the custom user ids
+    private CommentRowParser rowParser; // created in open, since the spout is serialized when submitted
     private SpoutOutputCollector collector;
-    private Long delay;
     private Boolean eof;
+    private boolean inputDone; // all lines have been read, eof is sent once no rows are pending
+    private boolean started; // the first call of nextTuple has sent the start position
+    private int linesThisRun; // lines read since the spout was opened
+    private int maxRowsPerCall; // rows emitted by one call of nextTuple
+    private TokenBucket rateLimiter; // null when the rate is not limited
+    private boolean anchored; // rows are emitted with message ids and replayed on failure
+    private Map<Long, Values> pendingRows; // line number -> row emitted and not yet acked, in anchored mode
+    private ArrayDeque<Long> failedRows; // line numbers of failed rows to emit again, in anchored mode
+    private boolean offsetPending; // an input position waits for the rows before it to be acked, in anchored mode
+    private int batchSize; // user ids per batch tuple, 0 emits one tuple per row
+    private long batchFlushMillis; // max time a user id waits in a batch
+    private List<Integer> cmsBoltTasks; // sorted CMSBolt tasks, one batch per task
+    private long[][] batches;
+    private int[] batchSizes;
+    private long lastFlushTime;
+    private int combinerSize; // max distinct user ids combined before emitting them, 0 disables the combiner
+    private LongLongHashMap combinedCounts; // user id -> occurrences since the last flush
+    private long[] combinedUserIds; // flush buffers
+    private long[] combinedUserIdCounts;
+    private boolean checkpointing; // sends input positions to CMSBolt tasks
+    private String checkpointDir;
+    private int cmsBoltTaskCount;
+    private int taskIndex; // index of this spout task
+    private int spoutTasks; // number of spout tasks reading sections of the local data file
+    private String dataFile; // local data file, null or empty to read dataUrl
+    private String dataUrl;
+    private long linesRead; // lines read from the input, including lines skipped when resuming
+    private long markedLines = -1L; // lines of the last input position sent or waiting to be sent
+    private long[] rewindTo; // {offset, lines} to read again from at the next input position, null if none
+    private long lastRewindCheck;
+    private RateMetric rowsPerSecond; // rows parsed per second
+    private RateMetric tuplesPerSecond; // tuples with user ids emitted per second
+    private CountMetric skippedLines; // lines that are not well formed rows
+    private CountMetric readErrors; // failures to read the input
+    private CountMetric replayedRows; // failed rows emitted again
 
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
-        outputFieldsDeclarer.declareStream(StreamConfig.DATA_STREAM, new Fields("postId", "score", "userId"));
+        // lines: the lines read up to the rows of the tuple
+        outputFieldsDeclarer.declareStream(StreamConfig.DATA_STREAM, new Fields("postId", "score", "userId", "lines"));
+        outputFieldsDeclarer.declareStream(StreamConfig.BATCH_STREAM, true, new Fields("userIds", "lines"));
+        outputFieldsDeclarer.declareStream(StreamConfig.COUNTS_STREAM, new Fields("userId", "count", "lines"));
+        outputFieldsDeclarer.declareStream(StreamConfig.OFFSET_STREAM, new Fields("offset", "lines"));
         outputFieldsDeclarer.declareStream(StreamConfig.TICK_STREAM, new Fields("eof"));
         outputFieldsDeclarer.declareStream(StreamConfig.CUSTOM_USER_IDS_STREAM, new Fields("userId"));
     }
@@ -42,69 +109,437 @@ public class CMSSpout implements IRichSpout {
     @Override
     public void open(Map map, TopologyContext topologyContext, SpoutOutputCollector spoutOutputCollector) {
         collector = spoutOutputCollector;
-        inputFileReader = startReader((String) map.get("dataUrl"));
-        delay = (Long) map.get("delay");
+        rowParser = new CommentRowParser();
+
+        // Setup metrics, reported every metrics bucket to the metrics consumers of the topology
+        int metricsBucketSecs = Integer.parseInt(map.get("metricsBucketSecs").toString());
+        rowsPerSecond = topologyContext.registerMetric("rowsPerSecond", new RateMetric(), metricsBucketSecs);
+        tuplesPerSecond = topologyContext.registerMetric("tuplesPerSecond", new RateMetric(), metricsBucketSecs);
+        skippedLines = topologyContext.registerMetric("skippedLines", new CountMetric(), metricsBucketSecs);
+        readErrors = topologyContext.registerMetric("readErrors", new CountMetric(), metricsBucketSecs);
+        replayedRows = topologyContext.registerMetric("replayedRows", new CountMetric(), metricsBucketSecs);
+
+        // Resume from the position that all CMSBolt tasks have checkpointed, if any
+        checkpointDir = map.get("checkpointDir").toString();
+        checkpointing = !checkpointDir.isEmpty();
+        cmsBoltTaskCount = topologyContext.getComponentTasks(CMSTopology.CMS_BOLT_ID).size();
+        taskIndex = topologyContext.getThisTaskIndex();
+        long resumeOffset = 0L;
+        if (checkpointing) {
+            // requests to read rows again are older than the checkpoints this task resumes from
+            BoltCheckpoint.takeRewind(checkpointDir, cmsBoltTaskCount, taskIndex);
+            BoltCheckpoint resumePoint = findResumePoint(checkpointDir, cmsBoltTaskCount, taskIndex,
+                    BoltCheckpoint.identity(map));
+            if (resumePoint != null) {
+                resumeOffset = resumePoint.getSpoutOffset(taskIndex);
+                linesRead = resumePoint.getSpoutLines(taskIndex);
+                LOG.info("Spout task [" + taskIndex + "] resumes at offset [" + resumeOffset + "] after [" + linesRead
+                        + "] lines");
+            }
+        }
+
+        dataFile = (String) map.get("dataFile");
+        dataUrl = (String) map.get("dataUrl");
+        spoutTasks = topologyContext.getComponentTasks(topologyContext.getThisComponentId()).size();
+        openInput(resumeOffset);
+        emitsCustomUserIds = topologyContext.getThisTaskIndex() == 0;
         eof = false;
+
+        // Setup the rows emitted per call, limited by a token bucket when a max rate is given
+        maxRowsPerCall = Integer.parseInt(map.get("maxRowsPerCall").toString());
+        int maxRowsPerSecond = Integer.parseInt(map.get("maxRowsPerSecond").toString());
+        if (maxRowsPerSecond > 0) {
+            rateLimiter = new TokenBucket(maxRowsPerSecond, Math.max(maxRowsPerCall, 1));
+        }
+
+        // Setup one batch per CMSBolt task
+        batchSize = Integer.parseInt(map.get("batchSize").toString());
+        batchFlushMillis = Long.parseLong(map.get("batchFlushMillis").toString());
+        if (batchSize > 0) {
+            cmsBoltTasks = UserIdGrouping.sortedTasks(topologyContext.getComponentTasks(CMSTopology.CMS_BOLT_ID));
+            batches = new long[cmsBoltTasks.size()][batchSize];
+            batchSizes = new int[cmsBoltTasks.size()];
+            lastFlushTime = System.currentTimeMillis();
+        }
+
+        // Setup the combiner, batches take precedence
+        combinerSize = Integer.parseInt(map.get("combinerSize").toString());
+        if (combinerSize > 0 && batchSize == 0) {
+            combinedCounts = new LongLongHashMap(combinerSize);
+            combinedUserIds = new long[combinerSize];
+            combinedUserIdCounts = new long[combinerSize];
+            lastFlushTime = System.currentTimeMillis();
+        }
+
+        // Setup anchored mode, only rows emitted one per tuple are anchored
+        anchored = Boolean.parseBoolean(map.get("anchored").toString());
+        if (anchored && (batchSize > 0 || combinedCounts != null)) {
+            LOG.warn("Batches and combined counts are not anchored, emitting them without message ids");
+            anchored = false;
+        }
+        if (anchored) {
+            pendingRows = new HashMap<Long, Values>();
+            failedRows = new ArrayDeque<Long>();
+        }
     }
 
     /**
-     * Reads lines from file, extracts only needed values (user id etc) and emits to collector
+     * Reads lines from file, extracts only needed values (user id etc) and emits to collector. Emits at most
+     * maxRowsPerCall rows, or the rows the rate limiter allows, failed rows first, then returns.
      */
     @Override
     public void nextTuple() {
+        if (checkpointing && started) {
+            checkRewind();
+        }
         if (eof) return;
 
-        int index = 0;
+        int rows = rateLimiter != null ? rateLimiter.tryAcquire(maxRowsPerCall) : maxRowsPerCall;
         try {
-            inputFileReader.readLine(); // skip xml metadata field
-            inputFileReader.readLine(); // skip xml comments field
+            if (!started) {
+                started = true;
+                if (checkpointing) {
+                    markOffset();
+                }
+            }
+            while (rows > 0 && failedRows != null && !failedRows.isEmpty()) {
+                Long lineNumber = failedRows.poll();
+                Values row = pendingRows.get(lineNumber);
+                if (row != null) {
+                    collector.emit(StreamConfig.DATA_STREAM, row, lineNumber);
+                    replayedRows.incr();
+                    rows--;
+                }
+            }
+            if (offsetPending && pendingRows.isEmpty()) {
+                offsetPending = false;
+                emitOffset();
+            }
+            while (rows > 0 && !inputDone && !offsetPending && !(rewindTo != null && markedLines == linesRead)) {
 
+                // xml metadata and comments fields are skipped as they are not rows
+                CharSequence line = readLine();
 
-            while (true) {
+                // if EOF -> send pending batches and the last input position
+                if (line == null || linesRead > LINES_TO_READ) {
+                    inputDone = true;
+                    flushPending();
+                    if (checkpointing) {
+                        markOffset();
+                    }
+                    break;
+                }
 
-                String line = inputFileReader.readLine();
+                linesThisRun++;
+                linesRead++;
+                // Emit new tuple, skipping lines that are not well formed rows
+                if (rowParser.parse(line)) {
+                    rows--;
+                    rowsPerSecond.incrBy(1);
+                    if (batchSize > 0) {
+                        addToBatch(rowParser.getUserId());
+                    } else if (combinedCounts != null) {
+                        combine(rowParser.getUserId());
+                    } else {
+                        emitRow();
+                    }
+                } else {
+                    skippedLines.incr();
+                }
+                if (checkpointing && linesRead % OFFSET_MARKER_LINES == 0) {
+                    flushPending();
+                    markOffset();
+                }
+            }
 
-                // if EOF -> send to TICK_STREAM finish message
-                if (line.equalsIgnoreCase("comments") || index > LINES_TO_READ) {
+            // rows that are still pending may be emitted again, so they must be counted before eof
+            if (inputDone && !offsetPending && (pendingRows == null || pendingRows.isEmpty())) {
+                emitEof();
+            }
+        } catch (IOException e) {
+            readErrors.incr();
+            LOG.error("Cannot read input", e);
+        }
 
-                    // send tick that indicates eof
-                    LOG.info("Spout has consumed all [" + index + "] rows from file. Emitting to tick message to data stream");
-                    eof = true;
-                    collector.emit(StreamConfig.TICK_STREAM, new Values(true));
+    }
 
-                    // send custom user ids
-                    for (String userId : PREDEFINED_IDS.split(",")) {
-                        collector.emit(StreamConfig.CUSTOM_USER_IDS_STREAM, new Values(userId));
+    /**
+     * Emit the last parsed row, with its line number as message id in anchored mode
+     */
+    private void emitRow() {
+        Values row = createTuple();
+        if (anchored) {
+            pendingRows.put(linesRead, row);
+            collector.emit(StreamConfig.DATA_STREAM, row, linesRead);
+        } else {
+            collector.emit(StreamConfig.DATA_STREAM, row);
+        }
+        tuplesPerSecond.incrBy(1);
+    }
 
-                    }
-                    break;
-                }
+    /**
+     * Send the tick that indicates eof, then the custom user ids
+     */
+    private void emitEof() {
+        LOG.info("Spout has consumed all [" + linesThisRun + "] rows from file. Emitting to tick message to data stream");
+        eof = true;
+        collector.emit(StreamConfig.TICK_STREAM, new Values(true));
+
+        // send custom user ids
+        if (emitsCustomUserIds) {
+            for (String userId : PREDEFINED_IDS.split(",")) {
+                collector.emit(StreamConfig.CUSTOM_USER_IDS_STREAM, new Values(Long.parseLong(userId)));
+            }
+        }
+    }
+
+    /**
+     * Add the user id to the batch of its CMSBolt task. Emits the batch when full, and all batches
+     * when the flush interval has passed.
+     *
+     * @param userId the user id of the row
+     */
+    private void addToBatch(long userId) {
+        int partition = UserIdGrouping.partition(userId, batches.length);
+        batches[partition][batchSizes[partition]++] = userId;
+        if (batchSizes[partition] == batchSize) {
+            emitBatch(partition);
+        }
+        if (System.currentTimeMillis() - lastFlushTime >= batchFlushMillis) {
+            flushBatches();
+        }
+    }
+
+    /**
+     * Count one more occurrence of the user id in the combiner. Emits the combined counts when the combiner is full
+     * or the flush interval has passed.
+     *
+     * @param userId the user id of the row
+     */
+    private void combine(long userId) {
+        combinedCounts.addTo(userId, 1);
+        if (combinedCounts.size() == combinerSize || System.currentTimeMillis() - lastFlushTime >= batchFlushMillis) {
+            flushCombiner();
+        }
+    }
 
-                index++;
-                // Emit new tuple
-                Thread.sleep(delay);
-                collector.emit(StreamConfig.DATA_STREAM, createTuple(line));
+    /**
+     * Emit each combined user id once with its count, and empty the combiner
+     */
+    private void flushCombiner() {
+        int size = combinedCounts.copyTo(combinedUserIds, combinedUserIdCounts);
+        for (int i = 0; i < size; i++) {
+            collector.emit(StreamConfig.COUNTS_STREAM, new Values(combinedUserIds[i], combinedUserIdCounts[i],
+                    linesRead));
+        }
+        tuplesPerSecond.incrBy(size);
+        combinedCounts.clear();
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Emit the user ids waiting in batches or in the combiner
+     */
+    private void flushPending() {
+        if (batchSize > 0) {
+            flushBatches();
+        } else if (combinedCounts != null) {
+            flushCombiner();
+        }
+    }
+
+    /**
+     * Emit all non empty batches
+     */
+    private void flushBatches() {
+        for (int partition = 0; partition < batches.length; partition++) {
+            if (batchSizes[partition] > 0) {
+                emitBatch(partition);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
+        lastFlushTime = System.currentTimeMillis();
+    }
 
+    /**
+     * Emit the batch of a partition directly to its CMSBolt task
+     *
+     * @param partition the partition of the batch
+     */
+    private void emitBatch(int partition) {
+        long[] userIds = Arrays.copyOf(batches[partition], batchSizes[partition]);
+        collector.emitDirect(cmsBoltTasks.get(partition), StreamConfig.BATCH_STREAM, new Values(userIds, linesRead));
+        tuplesPerSecond.incrBy(1);
+        batchSizes[partition] = 0;
     }
 
     /**
-     * Split line data and create tuple values with postId,score,userId
+     * Send the input position after the rows emitted so far, or in anchored mode, wait until the pending rows are
+     * acked: a failed row before the position is emitted again after it, so a CMSBolt task that checkpointed the
+     * position would skip the row after a restart
+     */
+    private void markOffset() {
+        markedLines = linesRead;
+        if (anchored && !pendingRows.isEmpty()) {
+            offsetPending = true;
+        } else {
+            emitOffset();
+        }
+    }
+
+    /**
+     * Send the input position after the rows emitted so far to all CMSBolt tasks. The lines between positions are
+     * the same on every run, so a restarted CMSBolt task can recognize the position it has checkpointed.
+     */
+    private void emitOffset() {
+        long offset = mappedFileReader != null ? mappedFileReader.getPosition() : linesRead;
+        collector.emit(StreamConfig.OFFSET_STREAM, new Values(offset, linesRead));
+    }
+
+    /**
+     * Take the requests of CMSBolt tasks to read rows again, at most once per check interval, and read again from
+     * the oldest requested position once the spout task is at an input position that every CMSBolt task has
+     * received, so the CMSBolt tasks that have not restarted know which rows they have counted
+     */
+    private void checkRewind() {
+        long now = System.currentTimeMillis();
+        if (rewindTo == null && now - lastRewindCheck >= REWIND_CHECK_MILLIS) {
+            lastRewindCheck = now;
+            long[] requested = BoltCheckpoint.takeRewind(checkpointDir, cmsBoltTaskCount, taskIndex);
+            // the rows after a position that has not been read yet are sent anyway
+            if (requested != null && requested[1] < linesRead) {
+                rewindTo = requested;
+            }
+        }
+        if (rewindTo != null && markedLines == linesRead && !offsetPending) {
+            rewind();
+        }
+    }
+
+    /**
+     * Read the input again from the requested position, and send the position, so that the CMSBolt task that
+     * requested it starts counting the rows of this spout task again
+     */
+    private void rewind() {
+        long offset = rewindTo[0];
+        long lines = rewindTo[1];
+        rewindTo = null;
+        LOG.info("Spout task [" + taskIndex + "] reads again from offset [" + offset + "] after [" + lines
+                + "] lines, at the request of a restarted CMSBolt task");
+        close();
+        linesRead = lines;
+        openInput(offset);
+        if (pendingRows != null) {
+            // every row before the current position has been acked
+            pendingRows.clear();
+            failedRows.clear();
+        }
+        inputDone = false;
+        eof = false;
+        markOffset();
+    }
+
+    /**
+     * Open the local data file at the offset, or the URL skipping the lines read before the offset
+     *
+     * @param offset the offset of the local data file to read from
+     */
+    private void openInput(long offset) {
+        if (dataFile != null && !dataFile.isEmpty()) {
+            mappedFileReader = startMappedReader(dataFile, spoutTasks, taskIndex, offset);
+        } else {
+            inputFileReader = startReader(dataUrl);
+            skipLines(linesRead);
+        }
+    }
+
+    /**
+     * Find the oldest input position of this spout task in the checkpoints of all CMSBolt tasks
+     *
+     * @param checkpointDir  the checkpoint directory
+     * @param cmsBoltTasks   the number of CMSBolt tasks
+     * @param spoutTaskIndex the index of this spout task
+     * @param input          the identity of the input
+     * @return the checkpoint with the oldest position, or null to read the whole input, if a CMSBolt task has no
+     * checkpoint of the input with a position of this spout task, or all CMSBolt tasks have completed the input
+     */
+    private BoltCheckpoint findResumePoint(String checkpointDir, int cmsBoltTasks, int spoutTaskIndex, String input) {
+        if (BoltCheckpoint.isRunComplete(checkpointDir, cmsBoltTasks, input)) {
+            LOG.info("All CMSBolt tasks have completed the input of their checkpoints, reading the whole input");
+            return null;
+        }
+        BoltCheckpoint oldest = null;
+        for (int i = 0; i < cmsBoltTasks; i++) {
+            BoltCheckpoint checkpoint;
+            try {
+                checkpoint = BoltCheckpoint.read(BoltCheckpoint.file(checkpointDir, i));
+            } catch (IOException e) {
+                LOG.warn("Cannot read checkpoint of CMSBolt task [" + i + "], reading the whole input", e);
+                return null;
+            }
+            if (checkpoint == null || !checkpoint.isOf(input) || checkpoint.getSpoutTasks() <= spoutTaskIndex) {
+                return null;
+            }
+            if (oldest == null || checkpoint.getSpoutLines(spoutTaskIndex) < oldest.getSpoutLines(spoutTaskIndex)) {
+                oldest = checkpoint;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Skip lines of the URL that have been counted before a restart
+     *
+     * @param lines the lines to skip
+     */
+    private void skipLines(long lines) {
+        try {
+            for (long i = 0; i < lines && inputFileReader.readLine() != null; i++) {
+                // skip
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot skip [" + lines + "] lines of input", e);
+        }
+    }
+
+    /**
+     * Create tuple values with postId,score,userId of the last parsed row, and the lines read up to it
      *
-     * @param line the xml data
      * @return the Values of the tuple
      */
-    private Values createTuple(String line) {
-        String[] data = line.split("\" ");
-        String postId = data[1].substring(data[1].indexOf("\"") + 1, data[1].length());
-        String score = data[2].substring(data[2].indexOf("\"") + 1, data[2].length());
-        String userId = data[5].substring(data[5].indexOf("\"") + 1, data[5].length());
-       return new Values(postId, score, userId);
+    private Values createTuple() {
+        return new Values(rowParser.getPostId(), rowParser.getScore(), rowParser.getUserId(), linesRead);
+    }
+
+    /**
+     * @return the next line of the URL or the local data file, null at the end of the input
+     * @throws IOException if reading fails
+     */
+    private CharSequence readLine() throws IOException {
+        if (mappedFileReader != null) {
+            return mappedFileReader.next() ? mappedFileReader.line() : null;
+        }
+        return inputFileReader.readLine();
+    }
+
+    /**
+     * Setup a memory mapped reader for the section of a local file that belongs to this spout task
+     *
+     * @param path         the path of the file
+     * @param spoutTasks   the number of spout tasks reading the file
+     * @param taskIndex    the index of this spout task
+     * @param resumeOffset the offset to resume reading the section from, 0 to read the whole section
+     * @return the reader of the section
+     */
+    private MappedLineReader startMappedReader(String path, int spoutTasks, int taskIndex, long resumeOffset) {
+        long fileSize = new File(path).length();
+        long start = Math.max(MappedLineReader.rangeStart(fileSize, spoutTasks, taskIndex), resumeOffset);
+        long end = MappedLineReader.rangeStart(fileSize, spoutTasks, taskIndex + 1);
+        LOG.info("Spout task [" + taskIndex + "] reads bytes [" + start + ", " + end + ") of [" + path + "]");
+        try {
+            return new MappedLineReader(path, start, end);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read data file [" + path + "]", e);
+        }
     }
 
     /**
@@ -119,7 +554,8 @@ public class CMSSpout implements IRichSpout {
             URL url = new URL(sourceUrl);
             in = new BufferedReader(new InputStreamReader(url.openStream()));
         } catch (IOException e) {
-            e.printStackTrace();
+            readErrors.incr();
+            LOG.error("Cannot open input [" + sourceUrl + "]", e);
         }
         return in;
     }
@@ -131,7 +567,16 @@ public class CMSSpout implements IRichSpout {
 
     @Override
     public void close() {
-
+        try {
+            if (mappedFileReader != null) {
+                mappedFileReader.close();
+            }
+            if (inputFileReader != null) {
+                inputFileReader.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot close input", e);
+        }
     }
 
     @Override
@@ -146,12 +591,16 @@ public class CMSSpout implements IRichSpout {
 
     @Override
     public void ack(Object o) {
-
+        if (pendingRows != null) {
+            pendingRows.remove(o);
+        }
     }
 
     @Override
     public void fail(Object o) {
-
+        if (pendingRows != null && pendingRows.containsKey(o)) {
+            failedRows.add((Long) o);
+        }
     }
 
 
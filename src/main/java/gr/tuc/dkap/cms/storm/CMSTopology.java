@@ -4,17 +4,45 @@ import backtype.storm.Config;
 import backtype.storm.LocalCluster;
 import backtype.storm.generated.AlreadyAliveException;
 import backtype.storm.generated.InvalidTopologyException;
+import backtype.storm.metric.LoggingMetricsConsumer;
+import backtype.storm.topology.BoltDeclarer;
 import backtype.storm.topology.TopologyBuilder;
 import backtype.storm.tuple.Fields;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import gr.tuc.dkap.cms.storm.utils.TopKPayload;
 
 /**
  * Topology builder
  */
 public class CMSTopology {
 
-    private static final Double ERROR=0.001d;
-    private static final Double ERROR_LIMIT=0.999d;
+    // CMSBolts send their top K results, aggregator keeps the top K of the received results
+    public static final String AGGREGATION_TOP_K = "topK";
+    // CMSBolts send their whole sketch, aggregator merges them in one global sketch
+    public static final String AGGREGATION_SKETCH = "sketch";
+
+    // Component ids
+    public static final String SPOUT_ID = "cmsFileSpout";
+    public static final String CMS_BOLT_ID = "cmsBolt";
+    public static final String AGGREGATOR_ID = "cmsAggregator";
+
+    static final Double ERROR=0.001d;
+    static final Double ERROR_LIMIT=0.999d;
+    static final CountMinSketch.UpdateMode UPDATE_MODE=CountMinSketch.UpdateMode.STANDARD; // or CONSERVATIVE
+    // or COUNT_MEAN_MIN, with STANDARD updates only
+    static final CountMinSketch.Estimator ESTIMATOR=CountMinSketch.Estimator.MIN;
+    static final CountMinSketch.HashScheme HASH_SCHEME=CountMinSketch.HashScheme.MIX64; // or LEGACY
     private static final int PARALLELISM_LEVEL=4;
+    private static final String AGGREGATION_MODE=AGGREGATION_TOP_K;
+    private static final int BATCH_SIZE=0;
+    private static final int COMBINER_SIZE=0; // distinct user ids combined in the spout, 0 emits one tuple per row
+    private static final boolean SKEW_AWARE=false; // split heavy user ids between two CMSBolt tasks
+    private static final boolean ANCHORED=false; // track rows with message ids and replay them on failure
+    private static final String DIMENSIONS="userComments"; // or e.g. "userComments,userScore,postComments"
+    private static final String DATA_FILE=""; // local Comments.xml, read instead of dataUrl when given
+    private static final int SPOUT_PARALLELISM=4; // spout tasks reading sections of DATA_FILE
+    private static final int QUERY_PORT=7070; // port of the live query server of the aggregator, 0 to disable
+    private static final String CHECKPOINT_DIR=""; // local directory of CMSBolt checkpoints, empty to disable
 
     public static void main(String[] args) throws AlreadyAliveException, InvalidTopologyException, InterruptedException {
 
@@ -25,32 +53,104 @@ public class CMSTopology {
         // Setup configuration object
         Config config = new Config();
         config.put("parallelismLevel", 1);
-        config.put("delay", 0);
+        config.put("maxRowsPerCall", 1000); // rows the spout emits per nextTuple call
+        config.put("maxRowsPerSecond", 0); // rows the spout emits per second, 0 for no limit
+        config.put("anchored", ANCHORED); // rows are tracked and replayed on failure, one tuple per row only
         config.put("errorLimit", ERROR);
         config.put("errorProbabilityLimit", ERROR_LIMIT);
+        config.put("updateMode", UPDATE_MODE.name());
+        config.put("estimator", ESTIMATOR.name());
+        config.put("hashScheme", HASH_SCHEME.name());
+        config.put("counterStorage", CountMinSketch.Storage.HEAP.name()); // or COMPACT, DIRECT, or MAPPED to counterStoreDir
+        config.put("counterStoreDir", "cms-counters"); // local directory of MAPPED counters, one file per CMSBolt, reset on start
         config.put("topK", 100);
+        config.put("topKCapacity", 1000); // max heavy hitters held by each CMSBolt
+        config.put("frontCacheSize", 0); // user ids counted exactly in front of each CMSBolt sketch, 0 disables it
+        config.put("dimensions", DIMENSIONS); // counted in one pass, userComments is always counted
+        config.put("globalTopKIntervalSecs", 5); // how often the aggregator sends the global top K, 0 at window end only
+        config.put("aggregationMode", AGGREGATION_MODE);
+        config.put("windowLengthSecs", 0); // count the last N seconds only, 0 counts the whole stream
+        config.put("windowSlideSecs", 0); // send results every N seconds, 0 or windowLengthSecs for a tumbling window
+        config.put("batchSize", BATCH_SIZE); // user ids per batch tuple, 0 emits one tuple per row
+        config.put("batchFlushMillis", 100); // max time a user id waits in a batch or in the combiner
+        config.put("combinerSize", COMBINER_SIZE); // ignored in batch mode
+        config.put("skewAware", SKEW_AWARE && BATCH_SIZE == 0 && !AGGREGATION_SKETCH.equals(AGGREGATION_MODE));
         config.put("totalCMSBolts", PARALLELISM_LEVEL);   // http://localhost/sampleComments.xml
         config.put("dataUrl", "http://localhost/Comments.xml"); // http://10.11.12.163/stream/Comments.xml
+        config.put("dataFile", DATA_FILE);
+        config.put("queryPort", QUERY_PORT); // e.g. http://localhost:7070/estimate?userIds=1,2 or /topk?k=10
+        config.put("snapshotIntervalSecs", QUERY_PORT > 0 ? 5 : 0); // how often CMSBolts publish their sketch
+        config.put("checkpointDir", CHECKPOINT_DIR);
+        config.put("checkpointIntervalSecs", 30); // how often CMSBolts write a checkpoint
+        config.registerSerialization(TopKPayload.class, TopKPayloadSerializer.class);
+        config.put("metricsBucketSecs", 10); // how often metrics are reported
+        config.registerMetricsConsumer(LoggingMetricsConsumer.class, 1); // writes metrics to the worker's metrics.log
+        if (ANCHORED) {
+            config.setMaxSpoutPending(10000); // rows in flight per spout task
+        }
         config.setDebug(false);
         config.setNumWorkers(1);
 
         TopologyBuilder builder = new TopologyBuilder();
-        builder.setSpout("cmsFileSpout", new CMSSpout(), 1);
+        // A URL is read by one spout task, a local file is split in sections read by parallel spout tasks
+        builder.setSpout(SPOUT_ID, new CMSSpout(), DATA_FILE.isEmpty() ? 1 : SPOUT_PARALLELISM);
 
         // CMSBolt receives raw data from DataStream, using fields grouping on 'userId'
         // CMSBolt receives custom user ids from CustomUserIdsStream, using fields grouping on 'userId'
         // CMSBolt receives ticks from TickStream
+        // CMSBolt receives the input positions of all spout tasks from OffsetStream, when checkpointing
+        // When aggregating sketches, any CMSBolt can count any user id, so raw data is shuffled
+        // and custom user ids are estimated by the aggregator from the global sketch
+        // In batch mode, CMSBolt receives batches of user ids from BatchStream, sent directly to the task of the
+        // user ids' partition, and custom user ids with the same partitioning
+        // In combiner mode, CMSBolt receives user ids with their counts from CountsStream, grouped like raw data
+        // With skew aware grouping, heavy user ids are split between two CMSBolt tasks instead of fields grouping,
+        // and custom user ids are sent to both tasks of the user id
         CMSBolt cmcBolt = new CMSBolt();
-        builder.setBolt("cmsBolt", cmcBolt, PARALLELISM_LEVEL)
-                .fieldsGrouping("cmsFileSpout", StreamConfig.DATA_STREAM, new Fields("userId"))
-                .allGrouping("cmsFileSpout", StreamConfig.TICK_STREAM)
-                .fieldsGrouping("cmsFileSpout", StreamConfig.CUSTOM_USER_IDS_STREAM, new Fields("userId"));
+        BoltDeclarer cmsBoltDeclarer = builder.setBolt(CMS_BOLT_ID, cmcBolt, PARALLELISM_LEVEL)
+                .allGrouping(SPOUT_ID, StreamConfig.TICK_STREAM);
+        if (!CHECKPOINT_DIR.isEmpty()) {
+            cmsBoltDeclarer.allGrouping(SPOUT_ID, StreamConfig.OFFSET_STREAM);
+        }
+        if (BATCH_SIZE > 0) {
+            cmsBoltDeclarer.directGrouping(SPOUT_ID, StreamConfig.BATCH_STREAM);
+            if (!AGGREGATION_SKETCH.equals(AGGREGATION_MODE)) {
+                cmsBoltDeclarer.customGrouping(SPOUT_ID, StreamConfig.CUSTOM_USER_IDS_STREAM, new UserIdGrouping());
+            }
+        } else if (AGGREGATION_SKETCH.equals(AGGREGATION_MODE)) {
+            cmsBoltDeclarer.shuffleGrouping(SPOUT_ID, COMBINER_SIZE > 0 ? StreamConfig.COUNTS_STREAM : StreamConfig.DATA_STREAM);
+        } else if (SKEW_AWARE) {
+            cmsBoltDeclarer.customGrouping(SPOUT_ID, COMBINER_SIZE > 0 ? StreamConfig.COUNTS_STREAM : StreamConfig.DATA_STREAM,
+                    new SkewAwareGrouping())
+                    .customGrouping(SPOUT_ID, StreamConfig.CUSTOM_USER_IDS_STREAM, new SkewAwareGrouping(true));
+        } else {
+            cmsBoltDeclarer.fieldsGrouping(SPOUT_ID, COMBINER_SIZE > 0 ? StreamConfig.COUNTS_STREAM : StreamConfig.DATA_STREAM,
+                    new Fields("userId"))
+                    .fieldsGrouping(SPOUT_ID, StreamConfig.CUSTOM_USER_IDS_STREAM, new Fields("userId"));
+        }
+
+        // CMSBolt receives the global top K threshold of each window from the aggregator, unless skew aware grouping
+        // splits the count of a user id between two bolts
+        if (!AGGREGATION_SKETCH.equals(AGGREGATION_MODE) && !(SKEW_AWARE && BATCH_SIZE == 0)) {
+            cmsBoltDeclarer.allGrouping(AGGREGATOR_ID, StreamConfig.THRESHOLD_STREAM);
+        }
 
         // Aggregator receives topK estimated values from CmsBolts
         // Aggregator receives custom user ids estimated values from CmsBolts
-        builder.setBolt("cmsAggregator", new CMSAggregatorBolt(), 1)
-                .shuffleGrouping("cmsBolt", StreamConfig.TOP_K_STREAM)
-                .shuffleGrouping("cmsBolt", StreamConfig.CUSTOM_USER_IDS_COUNT_STREAM);
+        // Aggregator receives sketches from CmsBolts and custom user ids from spout, when aggregating sketches
+        // Aggregator receives sketches of the dimensions not partitioned by user id from CmsBolts, in both modes
+        // Aggregator receives periodic snapshots of the sketches from CmsBolts, for live queries
+        BoltDeclarer aggregatorDeclarer = builder.setBolt(AGGREGATOR_ID, new CMSAggregatorBolt(), 1);
+        aggregatorDeclarer.shuffleGrouping(CMS_BOLT_ID, StreamConfig.SKETCH_STREAM);
+        if (AGGREGATION_SKETCH.equals(AGGREGATION_MODE)) {
+            aggregatorDeclarer.shuffleGrouping(SPOUT_ID, StreamConfig.CUSTOM_USER_IDS_STREAM);
+        } else {
+            aggregatorDeclarer.shuffleGrouping(CMS_BOLT_ID, StreamConfig.TOP_K_STREAM)
+                    .shuffleGrouping(CMS_BOLT_ID, StreamConfig.CUSTOM_USER_IDS_COUNT_STREAM);
+        }
+        if (QUERY_PORT > 0) {
+            aggregatorDeclarer.shuffleGrouping(CMS_BOLT_ID, StreamConfig.SNAPSHOT_STREAM);
+        }
 
         // Run locally
         LocalCluster cluster = new LocalCluster();
@@ -0,0 +1,87 @@
+package gr.tuc.dkap.cms.storm;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and writes checkpoints on a background thread, so that the bolt that takes the checkpoint does not wait
+ * for the encoding of its sketch nor for the disk. Each file is written to a temporary file, synced and then renamed
+ * over the previous checkpoint, so a crash while writing leaves the previous checkpoint intact. If a checkpoint is
+ * still waiting to be written when a new one is submitted, the waiting one is dropped: only the latest checkpoint
+ * matters.
+ */
+public class CheckpointWriter {
+    private static final Logger LOG = Logger.getLogger(CheckpointWriter.class);
+
+    private final ThreadPoolExecutor executor;
+
+    public CheckpointWriter() {
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "cms-checkpoint-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Submit a checkpoint to be encoded and written
+     *
+     * @param file       the checkpoint file
+     * @param checkpoint the checkpoint, which must not change after it is submitted
+     */
+    public void write(final File file, final BoltCheckpoint checkpoint) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeFile(file, checkpoint.toByteArray());
+                } catch (IOException e) {
+                    LOG.error("Cannot write checkpoint [" + file + "]", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the pending checkpoint, if any, and stop the writer thread
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory [" + directory + "]");
+        }
+        File temp = new File(directory, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // rename does not replace an existing file on every platform
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Cannot rename [" + temp + "] to [" + file + "]");
+        }
+        LOG.debug("Written checkpoint [" + file + "] of [" + data.length + "] bytes");
+    }
+}
@@ -0,0 +1,66 @@
+package gr.tuc.dkap.cms.storm;
+
+/**
+ * What a sketch of CMSBolt counts for each row of the stream: the comments of each user, the total score of the
+ * comments of each user, or the comments of each post. Each dimension has its own sketch and top K in CMSBolt,
+ * all counted in the same pass over the rows. Rows are grouped by user id, so the top K results of a dimension of
+ * users are summed by the aggregator, while the count of a post is split between all bolts, so the sketches of the
+ * comments of each post are sent and merged instead.
+ */
+public enum Dimension {
+    USER_COMMENTS("userComments"),
+    USER_SCORE("userScore"),
+    POST_COMMENTS("postComments");
+
+    private final String id;
+
+    Dimension(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the id of the dimension in the config and in the dimension field of TopKStream
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param postId the post id of the row
+     * @param userId the user id of the row
+     * @return the item the row is counted for
+     */
+    public long item(long postId, long userId) {
+        return this == POST_COMMENTS ? postId : userId;
+    }
+
+    /**
+     * @return true if the items of the dimension are the user ids the rows are grouped by, so each item is counted
+     * by the bolts of its user id only and their top K results can be summed
+     */
+    public boolean isPartitioned() {
+        return this != POST_COMMENTS;
+    }
+
+    /**
+     * @param score the score of the row
+     * @return the count the row adds to its item; a sketch only counts up, so negative scores add nothing
+     */
+    public long weight(long score) {
+        return this == USER_SCORE ? Math.max(score, 0L) : 1L;
+    }
+
+    /**
+     * @param id the id of a dimension
+     * @return the dimension
+     * @throws IllegalArgumentException if there is no dimension with the id
+     */
+    public static Dimension fromId(String id) {
+        for (Dimension dimension : values()) {
+            if (dimension.id.equals(id)) {
+                return dimension;
+            }
+        }
+        throw new IllegalArgumentException("Unknown dimension [" + id + "]");
+    }
+}
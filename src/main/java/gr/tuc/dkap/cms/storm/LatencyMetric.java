@@ -0,0 +1,59 @@
+package gr.tuc.dkap.cms.storm;
+
+import backtype.storm.metric.api.IMetric;
+import org.HdrHistogram.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storm metric with the latency distribution of an operation, in nanoseconds, over each metrics bucket.
+ * Latencies are recorded in an HdrHistogram, so recording does not allocate, and reported as count, mean,
+ * percentiles and max. Hot operations should record only a sample of their calls, see shouldSample.
+ */
+public class LatencyMetric implements IMetric {
+
+    private static final long MAX_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Histogram histogram = new Histogram(MAX_LATENCY_NANOS, 2);
+    private final int sampleMask; // records one call out of sampleMask + 1
+    private long calls;
+
+    /**
+     * @param sampleRate record one call out of sampleRate, a power of two
+     */
+    public LatencyMetric(int sampleRate) {
+        if (Integer.bitCount(sampleRate) != 1) {
+            throw new IllegalArgumentException("Sample rate must be a power of two: " + sampleRate);
+        }
+        this.sampleMask = sampleRate - 1;
+    }
+
+    /**
+     * @return true if the latency of this call should be recorded
+     */
+    public boolean shouldSample() {
+        return (calls++ & sampleMask) == 0;
+    }
+
+    /**
+     * @param startNanos the System.nanoTime() when the operation started
+     */
+    public void recordSince(long startNanos) {
+        histogram.recordValue(Math.min(System.nanoTime() - startNanos, MAX_LATENCY_NANOS));
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Map<String, Object> value = new LinkedHashMap<String, Object>();
+        value.put("count", histogram.getTotalCount());
+        value.put("mean", histogram.getMean());
+        value.put("p50", histogram.getValueAtPercentile(50));
+        value.put("p99", histogram.getValueAtPercentile(99));
+        value.put("p999", histogram.getValueAtPercentile(99.9));
+        value.put("max", histogram.getMaxValue());
+        histogram.reset();
+        return value;
+    }
+}
@@ -0,0 +1,283 @@
+package gr.tuc.dkap.cms.storm;
+
+import gr.tuc.dkap.cms.storm.utils.CommentRowParser;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import gr.tuc.dkap.cms.storm.utils.MappedLineReader;
+import gr.tuc.dkap.cms.storm.utils.SpscQueue;
+import gr.tuc.dkap.cms.storm.utils.TopKHolder;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts a local Comments.xml file in one process, without Storm, for single node runs and as a throughput
+ * baseline of the topology. Reader threads parse sections of the file like the spout tasks, and send the user ids
+ * in batches to worker threads partitioned like UserIdGrouping, through one bounded lock-free queue per reader and
+ * worker. Each worker counts its user ids in its own CountMinSketch, with the update mode, estimator and hash scheme
+ * of the topology. When all readers reach the end of their section, the top K results of the workers are merged like
+ * the aggregator does, the custom user ids are estimated, and the process exits. If a thread fails, the other
+ * threads stop and the run fails.
+ * <p/>
+ * Usage: LocalPipeline dataFile [workers] [readers] [topK]
+ */
+public class LocalPipeline {
+    private static final Logger LOG = Logger.getLogger(LocalPipeline.class);
+    private static final int BATCH_SIZE = 1024; // user ids per batch
+    private static final int QUEUE_CAPACITY = 64; // batches per queue
+    private static final int TOP_K_CAPACITY = 1000; // max heavy hitters held by each worker
+    private static final long IDLE_PARK_NANOS = 10000L; // wait of a thread whose queues are full or empty
+    private static final long[] END = new long[0]; // sent by a reader to each worker after its last batch
+
+    private final String dataFile;
+    private final int workers;
+    private final int readers;
+    private final int topK;
+
+    /**
+     * @param dataFile the local Comments.xml file
+     * @param workers  the number of worker threads, the partitions of the user ids
+     * @param readers  the number of reader threads, the sections of the file
+     * @param topK     the number of top K results
+     */
+    public LocalPipeline(String dataFile, int workers, int readers, int topK) {
+        this.dataFile = dataFile;
+        this.workers = workers;
+        this.readers = readers;
+        this.topK = topK;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: LocalPipeline dataFile [workers] [readers] [topK]");
+            return;
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1, processors / 2);
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, processors / 2);
+        int topK = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        new LocalPipeline(args[0], workers, readers, topK).run();
+    }
+
+    /**
+     * Count the file, then log the top K results and the estimates of the custom user ids
+     *
+     * @throws InterruptedException if interrupted while waiting for the threads
+     * @throws IllegalStateException if a reader or worker thread failed
+     */
+    public void run() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        LOG.info("Counting [" + dataFile + "] with [" + readers + "] readers and [" + workers + "] workers");
+
+        // queues.get(reader).get(worker): each queue has exactly one producer and one consumer
+        List<List<SpscQueue<long[]>>> queues = new ArrayList<List<SpscQueue<long[]>>>(readers);
+        for (int reader = 0; reader < readers; reader++) {
+            List<SpscQueue<long[]>> readerQueues = new ArrayList<SpscQueue<long[]>>(workers);
+            for (int worker = 0; worker < workers; worker++) {
+                readerQueues.add(new SpscQueue<long[]>(QUEUE_CAPACITY));
+            }
+            queues.add(readerQueues);
+        }
+
+        // the first failure of a thread, which makes the other threads stop instead of waiting on its queues
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread.UncaughtExceptionHandler failureHandler = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                LOG.error("Thread [" + thread.getName() + "] failed", e);
+                failure.compareAndSet(null, e);
+            }
+        };
+
+        long fileSize = new File(dataFile).length();
+        Reader[] readerTasks = new Reader[readers];
+        Thread[] threads = new Thread[readers + workers];
+        for (int reader = 0; reader < readers; reader++) {
+            readerTasks[reader] = new Reader(dataFile, MappedLineReader.rangeStart(fileSize, readers, reader),
+                    MappedLineReader.rangeStart(fileSize, readers, reader + 1), queues.get(reader), failure);
+            threads[reader] = new Thread(readerTasks[reader], "cms-reader-" + reader);
+        }
+        Worker[] workerTasks = new Worker[workers];
+        for (int worker = 0; worker < workers; worker++) {
+            List<SpscQueue<long[]>> workerQueues = new ArrayList<SpscQueue<long[]>>(readers);
+            for (int reader = 0; reader < readers; reader++) {
+                workerQueues.add(queues.get(reader).get(worker));
+            }
+            CountMinSketch cms = new CountMinSketch(CMSTopology.ERROR, CMSTopology.ERROR_LIMIT, TOP_K_CAPACITY,
+                    CMSTopology.HASH_SCHEME);
+            cms.setUpdateMode(CMSTopology.UPDATE_MODE);
+            cms.setEstimator(CMSTopology.ESTIMATOR);
+            workerTasks[worker] = new Worker(workerQueues, cms, failure);
+            threads[readers + worker] = new Thread(workerTasks[worker], "cms-worker-" + worker);
+        }
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(failureHandler);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Counting [" + dataFile + "] failed", failure.get());
+        }
+
+        long rows = 0;
+        for (Reader reader : readerTasks) {
+            rows += reader.rows;
+        }
+        long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+        LOG.info("Counted [" + rows + "] rows in [" + elapsedMillis + "] ms: [" + rows * 1000 / elapsedMillis
+                + "] rows per second");
+
+        // The partitions of the workers are disjoint, so the global top K is the top K of the workers' top K
+        TopKHolder globalTopK = new TopKHolder(topK);
+        for (Worker worker : workerTasks) {
+            for (Map.Entry<Long, Long> entry : worker.cms.getTopK(topK).entrySet()) {
+                globalTopK.addToTopKList(entry.getKey(), entry.getValue());
+            }
+        }
+        LOG.info("Global top K results");
+        int index = 1;
+        for (Map.Entry<Long, Long> entry : globalTopK.getTopK(topK).entrySet()) {
+            System.out.println(index + "," + entry.getKey() + "," + entry.getValue() + "");
+            index++;
+        }
+        for (String id : CMSSpout.PREDEFINED_IDS.split(",")) {
+            long userId = Long.parseLong(id);
+            long count = workerTasks[UserIdGrouping.partition(userId, workers)].cms.estimateCount(userId);
+            LOG.info("User id [" + userId + "] count [" + count + "]");
+        }
+    }
+
+    /**
+     * Wait a little for a full queue to drain or an empty one to fill
+     */
+    private static void idle() {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+    }
+
+    /**
+     * Parses the rows of a section of the file and sends their user ids in batches to the worker of their partition
+     */
+    private static class Reader implements Runnable {
+        private final String path;
+        private final long start;
+        private final long end;
+        private final List<SpscQueue<long[]>> queues; // per worker
+        private final AtomicReference<Throwable> failure; // first failure of any thread
+        private volatile long rows; // rows parsed, read after the thread has ended
+
+        Reader(String path, long start, long end, List<SpscQueue<long[]>> queues, AtomicReference<Throwable> failure) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+            this.queues = queues;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            CommentRowParser rowParser = new CommentRowParser();
+            long[][] batches = new long[queues.size()][BATCH_SIZE];
+            int[] batchSizes = new int[queues.size()];
+            long parsed = 0;
+            try {
+                MappedLineReader reader = new MappedLineReader(path, start, end);
+                try {
+                    while (reader.next()) {
+                        if (!rowParser.parse(reader.line())) {
+                            continue;
+                        }
+                        parsed++;
+                        long userId = rowParser.getUserId();
+                        int partition = UserIdGrouping.partition(userId, queues.size());
+                        batches[partition][batchSizes[partition]++] = userId;
+                        if (batchSizes[partition] == BATCH_SIZE) {
+                            put(queues.get(partition), batches[partition]);
+                            batches[partition] = new long[BATCH_SIZE];
+                            batchSizes[partition] = 0;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                LOG.error("Cannot read bytes [" + start + ", " + end + ") of [" + path + "]", e);
+                // the counts of the other ranges are incomplete without this one, so run fails too
+                failure.compareAndSet(null, e);
+            } finally {
+                // workers wait for the end of every reader, so it is sent even if reading failed
+                for (int partition = 0; partition < queues.size(); partition++) {
+                    if (batchSizes[partition] > 0) {
+                        put(queues.get(partition), Arrays.copyOf(batches[partition], batchSizes[partition]));
+                    }
+                    put(queues.get(partition), END);
+                }
+                rows = parsed;
+            }
+        }
+
+        /**
+         * @throws IllegalStateException if another thread has failed, so the queue may never drain
+         */
+        private void put(SpscQueue<long[]> queue, long[] batch) {
+            while (!queue.offer(batch)) {
+                if (failure.get() != null) {
+                    throw new IllegalStateException("Stopping reader of [" + path + "] after a failed thread");
+                }
+                idle();
+            }
+        }
+    }
+
+    /**
+     * Counts the user ids of the batches of all readers for one partition, until every reader has sent its end
+     */
+    private static class Worker implements Runnable {
+        private final List<SpscQueue<long[]>> queues; // per reader
+        private final CountMinSketch cms; // read after the thread has ended
+        private final AtomicReference<Throwable> failure; // first failure of any thread
+
+        Worker(List<SpscQueue<long[]>> queues, CountMinSketch cms, AtomicReference<Throwable> failure) {
+            this.queues = queues;
+            this.cms = cms;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            boolean[] ended = new boolean[queues.size()];
+            int running = queues.size();
+            while (running > 0 && failure.get() == null) {
+                boolean idle = true;
+                for (int reader = 0; reader < queues.size(); reader++) {
+                    if (ended[reader]) {
+                        continue;
+                    }
+                    long[] batch = queues.get(reader).poll();
+                    if (batch == null) {
+                        continue;
+                    }
+                    idle = false;
+                    if (batch == END) {
+                        ended[reader] = true;
+                        running--;
+                        continue;
+                    }
+                    for (long userId : batch) {
+                        cms.add(userId);
+                    }
+                }
+                if (idle) {
+                    idle();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package gr.tuc.dkap.cms.storm;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Embedded HTTP server that answers frequency queries while the topology runs:
+ * <ul>
+ * <li>GET /estimate?userIds=1,2,3 returns the estimated count of each user id</li>
+ * <li>GET /topk?k=10 returns the current top K user ids with their estimated counts</li>
+ * </ul>
+ * Queries are answered from the last published snapshot: a merged sketch that is never modified after it is
+ * published, so queries never wait for or block the bolts. Estimates only read the snapshot, so they are safe
+ * from any thread; queries are served by a single thread.
+ */
+public class QueryServer {
+    private static final Logger LOG = Logger.getLogger(QueryServer.class);
+
+    private static final int MAX_USER_IDS = 10000; // max user ids per estimate query
+
+    /**
+     * A published sketch with its top K results, immutable once published
+     */
+    private static class Snapshot {
+        private final CountMinSketch sketch;
+        private final Map<Long, Long> topK;
+        private final long publishedAt;
+
+        private Snapshot(CountMinSketch sketch, Map<Long, Long> topK, long publishedAt) {
+            this.sketch = sketch;
+            this.topK = topK;
+            this.publishedAt = publishedAt;
+        }
+    }
+
+    private final int topK; // max number of top K results served
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Gson gson = new Gson();
+    private volatile Snapshot snapshot;
+
+    /**
+     * Start the server
+     *
+     * @param port the port to listen to
+     * @param topK max number of top K results served
+     * @throws IOException if the server cannot listen to the port
+     */
+    public QueryServer(int port, int topK) throws IOException {
+        this.topK = topK;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/estimate", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleEstimate(exchange);
+            }
+        });
+        server.createContext("/topk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleTopK(exchange);
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cms-query-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        LOG.info("Query server listening on port [" + port + "]");
+    }
+
+    /**
+     * Publish a new snapshot. The sketch must not be modified after it is published.
+     *
+     * @param sketch the merged sketch to answer queries from
+     */
+    public void publish(CountMinSketch sketch) {
+        snapshot = new Snapshot(sketch, sketch.getTopK(topK), System.currentTimeMillis());
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleEstimate(HttpExchange exchange) throws IOException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            respond(exchange, 503, error("No snapshot published yet"));
+            return;
+        }
+        String userIds = queryParameter(exchange, "userIds");
+        if (userIds == null || userIds.isEmpty()) {
+            respond(exchange, 400, error("Missing userIds parameter"));
+            return;
+        }
+        String[] ids = userIds.split(",");
+        if (ids.length > MAX_USER_IDS) {
+            respond(exchange, 400, error("At most [" + MAX_USER_IDS + "] user ids per query"));
+            return;
+        }
+        Map<Long, Long> estimates = new LinkedHashMap<Long, Long>();
+        for (String id : ids) {
+            long userId;
+            try {
+                userId = Long.parseLong(id.trim());
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, error("Invalid user id [" + id + "]"));
+                return;
+            }
+            estimates.put(userId, current.sketch.estimateCount(userId));
+        }
+        respond(exchange, 200, result(current, "estimates", estimates));
+    }
+
+    private void handleTopK(HttpExchange exchange) throws IOException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            respond(exchange, 503, error("No snapshot published yet"));
+            return;
+        }
+        int k = topK;
+        String kParameter = queryParameter(exchange, "k");
+        if (kParameter != null) {
+            try {
+                k = Math.min(Integer.parseInt(kParameter), topK);
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, error("Invalid k [" + kParameter + "]"));
+                return;
+            }
+        }
+        // top K results are ordered by count, keep the first k
+        Map<Long, Long> results = new LinkedHashMap<Long, Long>();
+        for (Map.Entry<Long, Long> entry : current.topK.entrySet()) {
+            if (results.size() >= k) {
+                break;
+            }
+            results.put(entry.getKey(), entry.getValue());
+        }
+        respond(exchange, 200, result(current, "topK", results));
+    }
+
+    private Map<String, Object> result(Snapshot current, String name, Map<Long, Long> values) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("publishedAt", current.publishedAt);
+        result.put("totalCount", current.sketch.getTotalCount());
+        result.put(name, values);
+        return result;
+    }
+
+    private Map<String, Object> error(String message) {
+        return Collections.<String, Object>singletonMap("error", message);
+    }
+
+    /**
+     * @return the value of a parameter of the query string, or null if it is missing
+     */
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0 && parameter.substring(0, separator).equals(name)) {
+                return parameter.substring(separator + 1);
+            }
+        }
+        return null;
+    }
+
+    private void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package gr.tuc.dkap.cms.storm;
+
+import backtype.storm.metric.api.IMetric;
+
+/**
+ * Storm metric with the rate of events per second over each metrics bucket, instead of the average since start
+ */
+public class RateMetric implements IMetric {
+
+    private long count;
+    private long startTime = System.currentTimeMillis();
+
+    /**
+     * @param events the number of events that happened
+     */
+    public void incrBy(long events) {
+        count += events;
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        long now = System.currentTimeMillis();
+        double rate = now > startTime ? count * 1000d / (now - startTime) : 0d;
+        count = 0;
+        startTime = now;
+        return rate;
+    }
+}
@@ -0,0 +1,104 @@
+package gr.tuc.dkap.cms.storm;
+
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.grouping.CustomStreamGrouping;
+import backtype.storm.task.WorkerTopologyContext;
+import gr.tuc.dkap.cms.storm.utils.CountMinSketch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Groups tuples on their 'userId' field like UserIdGrouping, except for heavy user ids, which are split
+ * between two tasks (partial key grouping). Each user id has two candidate tasks: its UserIdGrouping partition and a
+ * second, different one. Light user ids always go to the first candidate. Heavy user ids go to the candidate this
+ * grouping has sent fewer tuples to, so no task receives all the tuples of a heavy user id.
+ * Heavy user ids are detected with a small count min sketch of the user ids this grouping has seen.
+ * <p/>
+ * The counts of a heavy user id are split between the two CMSBolt tasks, so they must be summed by the aggregator.
+ * For queries, a grouping created with queryAllChoices sends every user id to both candidates, and the aggregator
+ * sums the two estimates.
+ */
+public class SkewAwareGrouping implements CustomStreamGrouping {
+
+    private static final double SKETCH_ERROR = 0.001d;
+    private static final double SKETCH_CONFIDENCE = 0.99d;
+    private static final long MIN_SEEN = 1000L; // tuples to see before any user id is considered heavy
+    // a user id is heavy if it is more than this share of a task's fair share of the stream
+    private static final double HEAVY_SHARE = 0.05d;
+
+    private final boolean queryAllChoices;
+    private List<Integer> targetTasks;
+    private int userIdField; // index of the 'userId' field in the tuples of the stream
+    private transient CountMinSketch sketch;
+    private long[] load; // tuples sent to each target task
+    private long seen; // tuples seen
+
+    /**
+     * Grouping for the rows of the stream
+     */
+    public SkewAwareGrouping() {
+        this(false);
+    }
+
+    /**
+     * @param queryAllChoices true to send every user id to both its candidate tasks, for queries
+     */
+    public SkewAwareGrouping(boolean queryAllChoices) {
+        this.queryAllChoices = queryAllChoices;
+    }
+
+    @Override
+    public void prepare(WorkerTopologyContext workerTopologyContext, GlobalStreamId globalStreamId, List<Integer> targetTasks) {
+        this.targetTasks = UserIdGrouping.sortedTasks(targetTasks);
+        userIdField = workerTopologyContext.getComponentOutputFields(globalStreamId).fieldIndex("userId");
+        load = new long[targetTasks.size()];
+        if (!queryAllChoices) {
+            sketch = new CountMinSketch(SKETCH_ERROR, SKETCH_CONFIDENCE, 1, CountMinSketch.HashScheme.MIX64);
+        }
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+        long userId = ((Number) values.get(userIdField)).longValue();
+        int partitions = targetTasks.size();
+        int first = UserIdGrouping.partition(userId, partitions);
+        if (partitions == 1) {
+            return Collections.singletonList(targetTasks.get(first));
+        }
+        int second = secondPartition(userId, first, partitions);
+        if (queryAllChoices) {
+            return Arrays.asList(targetTasks.get(first), targetTasks.get(second));
+        }
+
+        seen++;
+        sketch.add(userId);
+        int chosen = first;
+        if (seen >= MIN_SEEN && sketch.estimateCount(userId) * partitions > seen * HEAVY_SHARE
+                && load[second] < load[first]) {
+            chosen = second;
+        }
+        load[chosen]++;
+        return Collections.singletonList(targetTasks.get(chosen));
+    }
+
+    /**
+     * @param userId     the user id
+     * @param first      the index of the first partition of the user id
+     * @param partitions the number of partitions (target tasks), at least 2
+     * @return the index of the second partition of the user id, different from the first
+     */
+    public static int secondPartition(long userId, int first, int partitions) {
+        long hash = userId * 0xC2B2AE3D27D4EB4FL;
+        return (first + 1 + (int) ((hash >>> 33) % (partitions - 1))) % partitions;
+    }
+
+    /**
+     * @param partitions the number of partitions (target tasks)
+     * @return the number of tasks a query of a user id is sent to
+     */
+    public static int queryChoices(int partitions) {
+        return Math.min(2, partitions);
+    }
+}
@@ -7,12 +7,26 @@ public class StreamConfig {
 
     // Stream to send data/tuples from CMSSpout to CMSBolt
     public static final String DATA_STREAM="dataStream";
+    // Direct stream to send batches of user ids from CMSSpout to the CMSBolt task of their partition
+    public static final String BATCH_STREAM="batchStream";
+    // Stream to send user ids with their number of occurrences from CMSSpout to CMSBolt, when combining
+    public static final String COUNTS_STREAM="countsStream";
+    // Stream to send the input position of CMSSpout to CMSBolt, between rows, when checkpointing
+    public static final String OFFSET_STREAM="offsetStream";
     // Stream to indicate EOF of tuples
     public static final String TICK_STREAM="tickStream";
     // Stream to send topK estimations from CMSBolt to Aggregator bolt
     public static final String TOP_K_STREAM="topKStream";
+    // Stream to send the current global topK of each window from Aggregator bolt
+    public static final String GLOBAL_TOP_K_STREAM="globalTopKStream";
+    // Stream to send the min count a user id needs to enter the global topK of a window from Aggregator to CMSBolt
+    public static final String THRESHOLD_STREAM="thresholdStream";
     // Stream to send custom user ids from CMSSpout to CMSBolt
     public static final String CUSTOM_USER_IDS_STREAM ="customUserIdsStream";
     // Stream to send custom user ids count from CMSBolt spout to Aggregator
     public static final String CUSTOM_USER_IDS_COUNT_STREAM ="customUserIdsCountStream";
+    // Stream to send serialized sketches from CMSBolt to Aggregator, when aggregating sketches
+    public static final String SKETCH_STREAM ="sketchStream";
+    // Stream to send periodic snapshots of the sketch from CMSBolt to Aggregator, for live queries
+    public static final String SNAPSHOT_STREAM ="snapshotStream";
 }
@@ -0,0 +1,26 @@
+package gr.tuc.dkap.cms.storm;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import gr.tuc.dkap.cms.storm.utils.TopKPayload;
+
+/**
+ * Kryo serializer that sends a TopKPayload in its compact binary encoding, registered in the topology config so
+ * that top K results travel between workers without Java serialization or field reflection
+ */
+public class TopKPayloadSerializer extends Serializer<TopKPayload> {
+
+    @Override
+    public void write(Kryo kryo, Output output, TopKPayload payload) {
+        byte[] bytes = payload.toByteArray();
+        output.writeInt(bytes.length, true);
+        output.writeBytes(bytes);
+    }
+
+    @Override
+    public TopKPayload read(Kryo kryo, Input input, Class<TopKPayload> type) {
+        return TopKPayload.fromByteArray(input.readBytes(input.readInt(true)));
+    }
+}
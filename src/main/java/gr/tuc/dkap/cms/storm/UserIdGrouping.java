@@ -0,0 +1,50 @@
+package gr.tuc.dkap.cms.storm;
+
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.grouping.CustomStreamGrouping;
+import backtype.storm.task.WorkerTopologyContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Groups tuples on the user id of their first field, like fields grouping on 'userId', but with a partition
+ * function that the spout can also apply itself when it sends batches of user ids directly to CMSBolt tasks.
+ * This way a user id of a batch and the same custom user id always reach the same CMSBolt task.
+ */
+public class UserIdGrouping implements CustomStreamGrouping {
+
+    private List<Integer> targetTasks;
+
+    @Override
+    public void prepare(WorkerTopologyContext workerTopologyContext, GlobalStreamId globalStreamId, List<Integer> targetTasks) {
+        this.targetTasks = sortedTasks(targetTasks);
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+        long userId = ((Number) values.get(0)).longValue();
+        return Collections.singletonList(targetTasks.get(partition(userId, targetTasks.size())));
+    }
+
+    /**
+     * @param userId     the user id
+     * @param partitions the number of partitions (target tasks)
+     * @return the index of the user id's partition
+     */
+    public static int partition(long userId, int partitions) {
+        long hash = userId * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 33) % partitions);
+    }
+
+    /**
+     * @param tasks the task ids
+     * @return the task ids sorted, so that partition indexes map to the same tasks everywhere
+     */
+    public static List<Integer> sortedTasks(List<Integer> tasks) {
+        List<Integer> sorted = new ArrayList<Integer>(tasks);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,54 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable CharSequence view of a range of bytes in a ByteBuffer, one char per byte. It lets text scanners like
+ * CommentRowParser read mapped file bytes in place; it is meant for the ASCII parts of the text, as multi byte
+ * characters are seen as one char per byte.
+ */
+class ByteBufferCharSequence implements CharSequence {
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Point the view to a new range
+     *
+     * @param buffer the buffer
+     * @param start  the index of the first byte
+     * @param end    the index after the last byte
+     */
+    void set(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(start + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        ByteBufferCharSequence sequence = new ByteBufferCharSequence();
+        sequence.set(buffer, start + from, start + to);
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length());
+        for (int i = start; i < end; i++) {
+            builder.append((char) (buffer.get(i) & 0xFF));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+/**
+ * Parser for the rows of StackOverflow Comments.xml, e.g.
+ * <pre>
+ * &lt;row Id="1" PostId="35314" Score="39" Text="..." CreationDate="2008-09-06T08:07:10.730" UserId="1" /&gt;
+ * </pre>
+ * It scans the attributes of the row by name, in any order, and parses PostId, Score and UserId straight into
+ * primitives, without splitting the row or creating intermediate Strings. The parser is reusable: each call to
+ * parse overwrites the values of the previous row.
+ */
+public class CommentRowParser {
+
+    private static final String ROW_TAG = "<row";
+    private static final String POST_ID = "PostId";
+    private static final String SCORE = "Score";
+    private static final String USER_ID = "UserId";
+
+    private long postId;
+    private long score;
+    private long userId;
+    private boolean hasPostId;
+    private boolean hasScore;
+    private boolean hasUserId;
+    private long parsedValue; // result of the last parseLong
+
+    /**
+     * Parse a row
+     *
+     * @param row the xml row
+     * @return true if the row has numeric PostId, Score and UserId attributes, false for any other line
+     */
+    public boolean parse(CharSequence row) {
+        hasPostId = false;
+        hasScore = false;
+        hasUserId = false;
+
+        int length = row.length();
+        int i = skipWhitespace(row, 0, length);
+        if (!startsWith(row, i, length, ROW_TAG)) {
+            return false;
+        }
+        i += ROW_TAG.length();
+
+        while (true) {
+            i = skipWhitespace(row, i, length);
+            if (i >= length || row.charAt(i) == '/' || row.charAt(i) == '>') {
+                break;
+            }
+
+            // attribute name up to '='
+            int nameStart = i;
+            while (i < length && row.charAt(i) != '=') {
+                i++;
+            }
+            int nameEnd = i;
+            if (i + 1 >= length || row.charAt(i + 1) != '"') {
+                return false;
+            }
+
+            // attribute value up to closing quote, xml escapes quotes in values
+            int valueStart = i + 2;
+            i = valueStart;
+            while (i < length && row.charAt(i) != '"') {
+                i++;
+            }
+            if (i >= length) {
+                return false;
+            }
+            int valueEnd = i++;
+
+            if (nameEquals(row, nameStart, nameEnd, USER_ID)) {
+                hasUserId = parseLong(row, valueStart, valueEnd);
+                userId = parsedValue;
+            } else if (nameEquals(row, nameStart, nameEnd, POST_ID)) {
+                hasPostId = parseLong(row, valueStart, valueEnd);
+                postId = parsedValue;
+            } else if (nameEquals(row, nameStart, nameEnd, SCORE)) {
+                hasScore = parseLong(row, valueStart, valueEnd);
+                score = parsedValue;
+            }
+        }
+        return hasPostId && hasScore && hasUserId;
+    }
+
+    /**
+     * @return the PostId of the last parsed row
+     */
+    public long getPostId() {
+        return postId;
+    }
+
+    /**
+     * @return the Score of the last parsed row
+     */
+    public long getScore() {
+        return score;
+    }
+
+    /**
+     * @return the UserId of the last parsed row
+     */
+    public long getUserId() {
+        return userId;
+    }
+
+    /**
+     * Parse a decimal long in [start, end) into parsedValue
+     *
+     * @return true if the range holds a decimal long
+     */
+    private boolean parseLong(CharSequence row, int start, int end) {
+        boolean negative = start < end && row.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end || end - i > 18) {
+            return false;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = row.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            value = value * 10 + digit;
+        }
+        parsedValue = negative ? -value : value;
+        return true;
+    }
+
+    private static int skipWhitespace(CharSequence row, int i, int length) {
+        while (i < length && row.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(CharSequence row, int i, int length, String prefix) {
+        if (length - i < prefix.length()) {
+            return false;
+        }
+        for (int j = 0; j < prefix.length(); j++) {
+            if (row.charAt(i + j) != prefix.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean nameEquals(CharSequence row, int start, int end, String name) {
+        return end - start == name.length() && startsWith(row, start, end, name);
+    }
+}
@@ -0,0 +1,193 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.util.Arrays;
+
+/**
+ * Counter store with adaptive counter widths, for sketches whose counters are mostly small. Counters are grouped in
+ * blocks of 128 consecutive counters, and each block starts with one byte per counter. When a counter of a block
+ * outgrows its width, the whole block is promoted: to 16 bits per counter, then to 32 bits. Only a counter that
+ * outgrows 32 bits, or is set to a negative value, is spilled to a hash map by index.
+ * <p>
+ * The counters of heavy items promote at most totalCount / 255 blocks per row, so while most counters stay below 255
+ * the table takes a little more than an eighth of the memory of a long[] and more of its rows fit in the CPU caches.
+ * The layout loses to HeapCounterStore when most counters are large, e.g. a narrow sketch of a long stream whose
+ * average counter, totalCount / width, is above 255: most blocks are then promoted, each counter takes its byte plus
+ * 2 or 4 bytes, and every access goes through the width of its block.
+ */
+public class CompactCounterStore implements CounterStore {
+
+    private static final int BLOCK_SHIFT = 7;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    // widths of the counters of a block
+    private static final byte BYTE = 0;
+    private static final byte SHORT = 1;
+    private static final byte INT = 2;
+    private static final int SPILLED = -1; // int counter held in the spill map
+
+    private final byte[] cells; // counters of the blocks of byte counters
+    private final byte[] widths; // width of the counters of each block
+    private final short[][] shortBlocks; // counters of the blocks of 16 bit counters, null for other blocks
+    private final int[][] intBlocks; // counters of the blocks of 32 bit counters, null for other blocks
+    private final LongLongHashMap spill = new LongLongHashMap();
+    private long totalCount;
+
+    /**
+     * @param size the number of counters
+     */
+    public CompactCounterStore(int size) {
+        cells = new byte[size];
+        int blocks = (size + BLOCK_MASK) >>> BLOCK_SHIFT;
+        widths = new byte[blocks];
+        shortBlocks = new short[blocks][];
+        intBlocks = new int[blocks][];
+    }
+
+    @Override
+    public int size() {
+        return cells.length;
+    }
+
+    @Override
+    public long get(int index) {
+        int block = index >>> BLOCK_SHIFT;
+        switch (widths[block]) {
+            case BYTE:
+                return cells[index] & 0xFF;
+            case SHORT:
+                return shortBlocks[block][index & BLOCK_MASK] & 0xFFFF;
+            default:
+                int cell = intBlocks[block][index & BLOCK_MASK];
+                return cell != SPILLED ? cell : spill.get(index, 0L);
+        }
+    }
+
+    @Override
+    public void set(int index, long value) {
+        int block = index >>> BLOCK_SHIFT;
+        int width = widthOf(value);
+        if (width > widths[block]) {
+            promote(block, width);
+        }
+        switch (widths[block]) {
+            case BYTE:
+                cells[index] = (byte) value;
+                break;
+            case SHORT:
+                shortBlocks[block][index & BLOCK_MASK] = (short) value;
+                break;
+            default:
+                int[] ints = intBlocks[block];
+                int offset = index & BLOCK_MASK;
+                if (value >= 0 && value <= Integer.MAX_VALUE) {
+                    if (ints[offset] == SPILLED) {
+                        spill.remove(index);
+                    }
+                    ints[offset] = (int) value;
+                } else {
+                    ints[offset] = SPILLED;
+                    spill.put(index, value);
+                }
+        }
+    }
+
+    @Override
+    public long add(int index, long delta) {
+        if (widths[index >>> BLOCK_SHIFT] == BYTE) {
+            long value = (cells[index] & 0xFF) + delta;
+            if (value >= 0 && value <= 0xFF) {
+                cells[index] = (byte) value;
+                return value;
+            }
+        }
+        long value = get(index) + delta;
+        set(index, value);
+        return value;
+    }
+
+    /**
+     * @param value the value of a counter
+     * @return the narrowest width that holds the value; negative and 64 bit values are held by spilled int counters
+     */
+    private static int widthOf(long value) {
+        if (value >= 0 && value <= 0xFF) {
+            return BYTE;
+        }
+        return value >= 0 && value <= 0xFFFF ? SHORT : INT;
+    }
+
+    /**
+     * Copy the counters of a block to wider counters. No counter of a block is spilled before it is promoted to INT.
+     *
+     * @param block the index of the block
+     * @param width the new width of the counters of the block, wider than the current one
+     */
+    private void promote(int block, int width) {
+        int start = block << BLOCK_SHIFT;
+        int length = Math.min(BLOCK_SIZE, cells.length - start);
+        if (width == SHORT) {
+            short[] shorts = new short[length];
+            for (int i = 0; i < length; i++) {
+                shorts[i] = (short) (cells[start + i] & 0xFF);
+            }
+            shortBlocks[block] = shorts;
+        } else {
+            int[] ints = new int[length];
+            for (int i = 0; i < length; i++) {
+                ints[i] = (int) get(start + i);
+            }
+            intBlocks[block] = ints;
+            shortBlocks[block] = null;
+        }
+        widths[block] = (byte) width;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    @Override
+    public void addTotalCount(long count) {
+        totalCount += count;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(cells, (byte) 0);
+        Arrays.fill(widths, BYTE);
+        Arrays.fill(shortBlocks, null);
+        Arrays.fill(intBlocks, null);
+        spill.clear();
+        totalCount = 0;
+    }
+
+    /**
+     * @return the number of blocks whose counters have been promoted to 16 or 32 bits
+     */
+    public int getPromotedBlockCount() {
+        int promoted = 0;
+        for (byte width : widths) {
+            if (width != BYTE) {
+                promoted++;
+            }
+        }
+        return promoted;
+    }
+
+    /**
+     * @return the number of counters held in the spill map
+     */
+    public int getSpilledCount() {
+        return spill.size();
+    }
+
+    @Override
+    public CounterStore emptyCopy() {
+        return new CompactCounterStore(cells.length);
+    }
+
+    @Override
+    public void close() {
+    }
+}
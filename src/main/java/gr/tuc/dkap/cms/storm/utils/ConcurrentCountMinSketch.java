@@ -0,0 +1,132 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe count min sketch for Long values, that many threads can update at once without locks.
+ * Counters are held in an AtomicLongArray and updated with atomic adds, so one sketch can be shared by all the
+ * threads of a worker instead of holding a full sketch per thread. It uses the same width, depth, hash scheme and
+ * hash seeds as CountMinSketch, so a snapshot of it can be merged with or serialized like any CountMinSketch.
+ * <p/>
+ * Heavy hitters are not tracked here; add returns the new estimate so callers can track them.
+ */
+public class ConcurrentCountMinSketch {
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentCountMinSketch.class);
+
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray table; // depth rows of width counters, row-major
+    private final long[] hashA;
+    private final CountMinSketch.HashScheme hashScheme;
+    private final int mask;
+
+    /**
+     * Concurrent count min sketch initializer, with the same dimensions as CountMinSketch
+     *
+     * @param error      expected error
+     * @param confidence expected confidence
+     */
+    public ConcurrentCountMinSketch(double error, double confidence) {
+        this(error, confidence, CountMinSketch.HashScheme.LEGACY);
+    }
+
+    /**
+     * Concurrent count min sketch initializer, with the same dimensions as CountMinSketch
+     *
+     * @param error      expected error
+     * @param confidence expected confidence
+     * @param hashScheme how the column of an item is computed in each row
+     */
+    public ConcurrentCountMinSketch(double error, double confidence, CountMinSketch.HashScheme hashScheme) {
+        this.width = CountMinSketch.widthFor(error, hashScheme);
+        this.depth = CountMinSketch.depthFor(confidence);
+        this.table = new AtomicLongArray(depth * width);
+        this.hashA = CountMinSketch.createHashSeeds(depth);
+        this.hashScheme = hashScheme;
+        this.mask = width - 1;
+        LOG.info("Creating concurrent count min sketch with width [" + width + "], depth [" + depth
+                + "] and hash scheme [" + hashScheme + "]");
+    }
+
+    /**
+     * Add item to cms
+     *
+     * @param item the item to add
+     * @return the estimated count of the item after adding it
+     */
+    public long add(long item) {
+        return add(item, 1);
+    }
+
+    /**
+     * Add count occurrences of item to cms
+     *
+     * @param item  the item to add
+     * @param count the occurrences to add
+     * @return the estimated count of the item after adding it
+     */
+    public long add(long item, long count) {
+        long mixed = mix(item);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0, offset = 0; i < depth; ++i, offset += width) {
+            long counter = table.addAndGet(offset + column(item, mixed, i), count);
+            if (counter < estimate) {
+                estimate = counter;
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimate the count of an item
+     *
+     * @param item the item to estimate value
+     * @return the estimated value using cms
+     */
+    public long estimateCount(long item) {
+        long mixed = mix(item);
+        long res = Long.MAX_VALUE;
+        for (int i = 0, offset = 0; i < depth; ++i, offset += width) {
+            long counter = table.get(offset + column(item, mixed, i));
+            if (counter < res) {
+                res = counter;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Copy the counters to a plain CountMinSketch, e.g. to merge or serialize them. Updates running concurrently
+     * may be partially included.
+     *
+     * @param topKCapacity max number of heavy hitters the copy can hold
+     * @return the copy of the sketch
+     */
+    public CountMinSketch toCountMinSketch(int topKCapacity) {
+        long[] counters = new long[table.length()];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = table.get(i);
+        }
+        // every add updates exactly one counter of each row, so any row sums to the total count
+        long totalCount = 0;
+        for (int i = 0; i < width; i++) {
+            totalCount += counters[i];
+        }
+        CountMinSketch cms = new CountMinSketch(depth, width, hashA.clone(), hashScheme, topKCapacity);
+        cms.addCounters(counters, totalCount);
+        return cms;
+    }
+
+    private long mix(long item) {
+        return hashScheme == CountMinSketch.HashScheme.MIX64 ? CountMinSketch.mix64(item, hashA[0]) : 0;
+    }
+
+    private int column(long item, long mixed, int i) {
+        return hashScheme == CountMinSketch.HashScheme.MIX64
+                ? CountMinSketch.column(mixed, i, mask)
+                : CountMinSketch.hash(item, hashA[i], width);
+    }
+}
@@ -3,22 +3,82 @@ package gr.tuc.dkap.cms.storm.utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
 
 /**
- * Count min sketch implementation for Long values only
+ * Count min sketch implementation for Long values only.
+ * <ul>
+ * <li>Update mode: standard updates increment the counter of every row; conservative updates raise the counters
+ * only up to the new minimum, so counters of colliding items grow less and estimates of the tail get smaller.</li>
+ * <li>Estimator: min returns the minimum counter of the rows; count-mean-min subtracts the estimated noise of each
+ * row (the mean of the other counters of the row) and returns the median, bounded by the minimum. It needs
+ * standard updates, and a sketch rejects it with conservative updates.</li>
+ * <li>Hash scheme: legacy hashes every row with its own multiply, prime mask and modulo; mix64 hashes the item
+ * once with a 64-bit finalizer and derives the column of each row by double hashing, with the width rounded up to
+ * a power of two so columns are masked instead of reduced modulo the width.</li>
+ * <li>Storage: the counters are held by a CounterStore, in a long[] on the heap, in one byte each with the blocks of
+ * large ones widened to 16 or 32 bits, in direct memory off the heap, or in a memory mapped file that offline tools
+ * can read.</li>
+ * </ul>
  */
 public class CountMinSketch {
+
+    /**
+     * How counters are updated when an item is added
+     */
+    public enum UpdateMode {
+        STANDARD, CONSERVATIVE
+    }
+
+    /**
+     * How the count of an item is estimated from its counters
+     */
+    public enum Estimator {
+        MIN, COUNT_MEAN_MIN
+    }
+
+    /**
+     * How the column of an item is computed in each row; sketches can only be merged with the same scheme
+     */
+    public enum HashScheme {
+        LEGACY, MIX64
+    }
+
+    /**
+     * Where the counters of a sketch are held in memory: a long[] on the heap, one byte per counter on the heap with
+     * large counters spilled to a map, or direct memory off the heap
+     */
+    public enum Storage {
+        HEAP, COMPACT, DIRECT
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(CountMinSketch.class);
     private static final long PRIME_MODULUS = (1L << 31) - 1;
     private static final int SEED = 7364181;
+    private static final double HEAVY_HITTER_RATIO = 0.01;
+    private static final int DEFAULT_TOP_K_CAPACITY = 1000;
+    private static final int FORMAT_MAGIC_V1 = 0x434D5301; // "CMS" + format version 1, legacy hash only
+    private static final int FORMAT_MAGIC = 0x434D5302; // "CMS" + format version 2, with hash scheme
 
     private TopKHolder topKHolder;
     private int depth;
     private int width;
-    private long[][] table;
+    private CounterStore store; // depth rows of width counters, row-major, and the sum of all counts added
     private long[] hashA;
+    private HashScheme hashScheme;
+    private int mask; // width - 1, for power of two widths of the mix64 scheme
+    private UpdateMode updateMode = UpdateMode.STANDARD;
+    private Estimator estimator = Estimator.MIN;
+    private int[] indexes; // scratch of conservative adds: index of the item's counter in each row
+    private long[] rowCounters; // scratch of conservative adds: item's counter in each row
 
     /**
      * Count min sketch initializer. Array is defined as:
@@ -31,20 +91,175 @@ public class CountMinSketch {
      * @param confidence
      */
     public CountMinSketch(double error, double confidence) {
-        this.width = (int) Math.ceil(2 / error);
-        this.depth = (int) Math.ceil(-Math.log(1 - confidence) / Math.log(2));
-        this.topKHolder = new TopKHolder();
-        LOG.info("Creating count min sketch with width [" + width + "] and depth [" + depth + "]");
-        setupHashTables(depth, width);
+        this(error, confidence, DEFAULT_TOP_K_CAPACITY);
+    }
+
+    /**
+     * Count min sketch initializer with a bounded top K holder
+     *
+     * @param error        expected error
+     * @param confidence   expected confidence
+     * @param topKCapacity max number of heavy hitters to hold
+     */
+    public CountMinSketch(double error, double confidence, int topKCapacity) {
+        this(error, confidence, topKCapacity, HashScheme.LEGACY);
+    }
+
+    /**
+     * Count min sketch initializer with a bounded top K holder and the given hash scheme. With the mix64 scheme
+     * the width is rounded up to a power of two.
+     *
+     * @param error        expected error
+     * @param confidence   expected confidence
+     * @param topKCapacity max number of heavy hitters to hold
+     * @param hashScheme   how the column of an item is computed in each row
+     */
+    public CountMinSketch(double error, double confidence, int topKCapacity, HashScheme hashScheme) {
+        this(error, confidence, topKCapacity, hashScheme, Storage.HEAP);
+    }
+
+    /**
+     * Count min sketch initializer with a bounded top K holder, the given hash scheme and the counters held in the
+     * given storage. Direct storage keeps large tables out of the heap and out of garbage collections.
+     *
+     * @param error        expected error
+     * @param confidence   expected confidence
+     * @param topKCapacity max number of heavy hitters to hold
+     * @param hashScheme   how the column of an item is computed in each row
+     * @param storage      where the counters are held
+     */
+    public CountMinSketch(double error, double confidence, int topKCapacity, HashScheme hashScheme, Storage storage) {
+        this(depthFor(confidence), widthFor(error, hashScheme), hashScheme, topKCapacity, storage);
+        LOG.info("Creating count min sketch with width [" + width + "], depth [" + depth + "], hash scheme ["
+                + hashScheme + "] and storage [" + storage + "]");
+    }
+
+    private CountMinSketch(int depth, int width, HashScheme hashScheme, int topKCapacity, Storage storage) {
+        this(depth, width, createHashSeeds(depth), hashScheme, topKCapacity, createStore(storage, depth * width));
+    }
+
+    private static CounterStore createStore(Storage storage, int size) {
+        switch (storage) {
+            case COMPACT:
+                return new CompactCounterStore(size);
+            case DIRECT:
+                return new DirectCounterStore(size);
+            default:
+                return new HeapCounterStore(size);
+        }
+    }
+
+    /**
+     * Initializer for a deserialized or copied sketch, with the given hash seeds
+     */
+    CountMinSketch(int depth, int width, long[] hashA, HashScheme hashScheme, int topKCapacity) {
+        this(depth, width, hashA, hashScheme, topKCapacity, new HeapCounterStore(depth * width));
+    }
+
+    /**
+     * Initializer with the given hash seeds and counter store
+     */
+    private CountMinSketch(int depth, int width, long[] hashA, HashScheme hashScheme, int topKCapacity,
+                           CounterStore store) {
+        if (hashScheme == HashScheme.MIX64 && Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Width of a mix64 sketch must be a power of two: " + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.hashA = hashA;
+        this.hashScheme = hashScheme;
+        this.mask = width - 1;
+        this.store = store;
+        this.topKHolder = new TopKHolder(topKCapacity);
+        this.indexes = new int[depth];
+        this.rowCounters = new long[depth];
+    }
+
+    /**
+     * Create a sketch with its counters in a memory mapped file, or reopen the sketch of the file if it has the
+     * same dimensions and hash scheme. The counters kept in the file are not cleared: a caller that recounts its
+     * input, as CMSBolt does from its checkpoint, must clear them first. The held heavy hitters are not kept in the
+     * file, they are found again as items are added.
+     *
+     * @param error        expected error
+     * @param confidence   expected confidence
+     * @param topKCapacity max number of heavy hitters to hold
+     * @param hashScheme   how the column of an item is computed in each row
+     * @param file         the file of the counters
+     * @return the sketch
+     * @throws IOException if the file cannot be opened or created
+     */
+    public static CountMinSketch mapped(double error, double confidence, int topKCapacity, HashScheme hashScheme,
+                                        File file) throws IOException {
+        int depth = depthFor(confidence);
+        int width = widthFor(error, hashScheme);
+        MappedCounterStore store = new MappedCounterStore(file, depth, width, hashScheme.ordinal());
+        LOG.info("Mapping count min sketch with width [" + width + "], depth [" + depth + "] and hash scheme ["
+                + hashScheme + "] to [" + file + "] with total count [" + store.getTotalCount() + "]");
+        return new CountMinSketch(depth, width, createHashSeeds(depth), hashScheme, topKCapacity, store);
+    }
+
+    /**
+     * Open the sketch of a memory mapped file written by a sketch created with mapped, for offline queries. The file
+     * is mapped for reading only, so items cannot be added to the sketch.
+     *
+     * @param file         the file of the counters
+     * @param topKCapacity max number of heavy hitters to hold
+     * @return the sketch
+     * @throws IOException if the file cannot be read or is not a sketch file
+     */
+    public static CountMinSketch openMapped(File file, int topKCapacity) throws IOException {
+        MappedCounterStore store = MappedCounterStore.open(file);
+        HashScheme hashScheme;
+        try {
+            hashScheme = HashScheme.values()[store.getHashScheme()];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Unknown hash scheme in count min sketch file [" + file + "]", e);
+        }
+        return new CountMinSketch(store.getDepth(), store.getWidth(), createHashSeeds(store.getDepth()), hashScheme,
+                topKCapacity, store);
     }
 
-    private void setupHashTables(int depth, int width) {
-        this.table = new long[depth][width];
-        this.hashA = new long[depth];
+    /**
+     * @param error expected error
+     * @return the width of the table, 2/error
+     */
+    static int widthFor(double error) {
+        return (int) Math.ceil(2 / error);
+    }
+
+    /**
+     * @param error      expected error
+     * @param hashScheme the hash scheme
+     * @return the width of the table, 2/error, rounded up to a power of two for the mix64 scheme
+     */
+    static int widthFor(double error, HashScheme hashScheme) {
+        int width = widthFor(error);
+        if (hashScheme == HashScheme.MIX64 && Integer.bitCount(width) != 1) {
+            width = Integer.highestOneBit(width) << 1;
+        }
+        return width;
+    }
+
+    /**
+     * @param confidence expected confidence
+     * @return the depth of the table, log[(1-confidence),base2]
+     */
+    static int depthFor(double confidence) {
+        return (int) Math.ceil(-Math.log(1 - confidence) / Math.log(2));
+    }
+
+    /**
+     * @param depth the depth of the table
+     * @return the hash seed of each row; sketches with the same depth get the same seeds, so they can be merged
+     */
+    static long[] createHashSeeds(int depth) {
+        long[] seeds = new long[depth];
         Random r = new Random(SEED);
         for (int i = 0; i < depth; ++i) {
-            hashA[i] = r.nextInt(Integer.MAX_VALUE);
+            seeds[i] = r.nextInt(Integer.MAX_VALUE);
         }
+        return seeds;
     }
 
 
@@ -53,44 +268,447 @@ public class CountMinSketch {
      *
      * @param item the item to add
      */
-    public void add(Long item) {
-        // Hash for each row and update count
-        for (int i = 0; i < depth; ++i) {
-            table[i][hash(item, i)]++;
-        }
+    public void add(long item) {
+        add(item, 1);
+    }
+
+    /**
+     * Add count occurrences of item to cms. Counters are updated and the new estimate is computed in the same
+     * pass over the rows, without allocating.
+     *
+     * @param item  the item to add
+     * @param count the occurrences to add
+     */
+    public void add(long item, long count) {
+        long estimate = addToCounters(item, count);
 
         // Check whether the value is in the topN percentage
-        // We suppose we have a large domain space so we check only the topK values
-        Long allSum = 0L;
-        for (Map.Entry<Object, Long> entry : topKHolder.getAll().entrySet()) {
-            Long counts = entry.getValue();
-            allSum = allSum + counts;
+        // We suppose we have a large domain space so we check only against the sum of the topK values
+        if (estimate >= topKHolder.getTotal() * HEAVY_HITTER_RATIO || topKHolder.contains(item)) {
+            topKHolder.addToTopKList(item, estimate);
+        }
+    }
+
+    /**
+     * Add count occurrences of item to the counters only, without holding it as a heavy hitter, as
+     * ConcurrentCountMinSketch does, e.g. when the caller tracks heavy hitters itself
+     *
+     * @param item  the item to add
+     * @param count the occurrences to add
+     * @return the estimated count of the item after adding it
+     */
+    public long addToCounters(long item, long count) {
+        store.addTotalCount(count);
+        return updateMode == UpdateMode.CONSERVATIVE
+                ? addConservative(item, count)
+                : addStandard(item, count);
+    }
+
+    /**
+     * Hash for each row, update count and keep the row minimum as the new estimate
+     *
+     * @return the new minimum counter of the item
+     */
+    private long addStandard(long item, long count) {
+        long mixed = mix(item);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0, offset = 0; i < depth; ++i, offset += width) {
+            long counter = store.add(offset + column(item, mixed, i), count);
+            if (counter < estimate) {
+                estimate = counter;
+            }
         }
+        return estimate;
+    }
 
-        if (estimateCount(item) >= (allSum * 0.01)) {
-            topKHolder.addToTopKList(item, estimateCount(item));
+    /**
+     * Hash for each row and find the row minimum, then raise only the counters below the new minimum to it
+     *
+     * @return the new minimum counter of the item
+     */
+    private long addConservative(long item, long count) {
+        long mixed = mix(item);
+        long min = Long.MAX_VALUE;
+        for (int i = 0, offset = 0; i < depth; ++i, offset += width) {
+            int index = offset + column(item, mixed, i);
+            indexes[i] = index;
+            long counter = store.get(index);
+            rowCounters[i] = counter;
+            if (counter < min) {
+                min = counter;
+            }
         }
+        long estimate = min + count;
+        for (int i = 0; i < depth; ++i) {
+            if (rowCounters[i] < estimate) {
+                store.set(indexes[i], estimate);
+            }
+        }
+        return estimate;
     }
 
     /**
-     * Estimate the count of an item
+     * Estimate the count of an item. Estimates only read the counters, so several threads can estimate at once
+     * while no thread adds.
      *
      * @param item the item to estimate value
      * @return the estimated value using cms
      */
-    public long estimateCount(Long item) {
+    public long estimateCount(long item) {
+        if (estimator == Estimator.COUNT_MEAN_MIN) {
+            long mixed = mix(item);
+            long[] counters = new long[depth];
+            for (int i = 0, offset = 0; i < depth; ++i, offset += width) {
+                counters[i] = store.get(offset + column(item, mixed, i));
+            }
+            return countMeanMin(counters, width, store.getTotalCount());
+        }
+        return minEstimate(item);
+    }
+
+    /**
+     * @param item the item to estimate value
+     * @return the minimum counter of the item, an upper bound of its count
+     */
+    private long minEstimate(long item) {
+        long mixed = mix(item);
         long res = Long.MAX_VALUE;
-        for (int i = 0; i < depth; ++i) {
-            res = Math.min(res, table[i][hash(item, i)]);
+        for (int i = 0, offset = 0; i < depth; ++i, offset += width) {
+            long counter = store.get(offset + column(item, mixed, i));
+            if (counter < res) {
+                res = counter;
+            }
         }
         return res;
     }
 
+    /**
+     * Count-mean-min estimate: the counter of each row minus the noise of the row, estimated as the mean of the
+     * other counters of the row. Returns the median of the rows, bounded by the minimum counter and by 0.
+     *
+     * @param rowCounters the item's counter in each row, reordered by this method
+     * @param width       the width of the table
+     * @param totalCount  the sum of all counts added, which is the sum of each row with standard updates only
+     * @return the estimated count
+     */
+    static long countMeanMin(long[] rowCounters, int width, long totalCount) {
+        int depth = rowCounters.length;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            long counter = rowCounters[i];
+            if (counter < min) {
+                min = counter;
+            }
+            long noise = width > 1 ? (totalCount - counter) / (width - 1) : 0;
+            rowCounters[i] = counter - noise;
+        }
+        Arrays.sort(rowCounters);
+        long median = (depth & 1) == 1
+                ? rowCounters[depth / 2]
+                : (rowCounters[depth / 2 - 1] + rowCounters[depth / 2]) / 2;
+        return Math.max(0, Math.min(median, min));
+    }
+
+    /**
+     * @param updateMode how counters are updated when an item is added
+     * @throws IllegalArgumentException if the update mode cannot be used with the estimator of the sketch
+     */
+    public void setUpdateMode(UpdateMode updateMode) {
+        checkSupported(updateMode, estimator);
+        this.updateMode = updateMode;
+    }
+
+    /**
+     * @param estimator how the count of an item is estimated by estimateCount
+     * @throws IllegalArgumentException if the estimator cannot be used with the update mode of the sketch
+     */
+    public void setEstimator(Estimator estimator) {
+        checkSupported(updateMode, estimator);
+        this.estimator = estimator;
+    }
+
+    /**
+     * Count-mean-min estimates the noise of a row from the total count, which is the sum of each row only when every
+     * add increments every row. Conservative updates leave the rows with smaller sums, so the noise would be
+     * overestimated and the counts underestimated.
+     *
+     * @param updateMode how counters are updated when an item is added
+     * @param estimator  how the count of an item is estimated
+     * @return true if the estimator gives valid estimates with the update mode
+     */
+    public static boolean isSupported(UpdateMode updateMode, Estimator estimator) {
+        return updateMode != UpdateMode.CONSERVATIVE || estimator != Estimator.COUNT_MEAN_MIN;
+    }
+
+    private static void checkSupported(UpdateMode updateMode, Estimator estimator) {
+        if (!isSupported(updateMode, estimator)) {
+            throw new IllegalArgumentException("Estimator [" + estimator + "] cannot be used with update mode ["
+                    + updateMode + "]");
+        }
+    }
+
+    /**
+     * Merge the counts of another sketch into this one. Both sketches must have the same width, depth, hash
+     * scheme and hash seeds. The heavy hitters of both sketches are re-estimated against the merged counts.
+     *
+     * @param other the sketch to merge
+     * @throws IllegalArgumentException if the sketches are not compatible
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth || other.hashScheme != hashScheme
+                || !Arrays.equals(other.hashA, hashA)) {
+            throw new IllegalArgumentException("Cannot merge count min sketch with width [" + other.width
+                    + "], depth [" + other.depth + "] and hash scheme [" + other.hashScheme + "] into sketch with width ["
+                    + width + "], depth [" + depth + "] and hash scheme [" + hashScheme + "] or different hash seeds");
+        }
+        for (int i = 0, size = store.size(); i < size; i++) {
+            long counter = other.store.get(i);
+            if (counter != 0) {
+                store.add(i, counter);
+            }
+        }
+        store.addTotalCount(other.store.getTotalCount());
+
+        reestimateTopK(topKHolder);
+        reestimateTopK(other.topKHolder);
+    }
+
+    private void reestimateTopK(TopKHolder holder) {
+        long[] values = new long[holder.size()];
+        long[] counts = new long[holder.size()];
+        int held = holder.copyTo(values, counts);
+        for (int i = 0; i < held; i++) {
+            topKHolder.addToTopKList(values[i], minEstimate(values[i]));
+        }
+    }
+
+    /**
+     * Serialize the sketch to a compact binary form: dimensions, hash scheme and hash seeds, then the counters and the
+     * held heavy hitters as variable length values, so that mostly empty tables take a few bytes per counter.
+     *
+     * @return the serialized sketch
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(store.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(depth);
+            out.writeInt(width);
+            out.writeByte(hashScheme.ordinal());
+            for (int i = 0; i < depth; i++) {
+                out.writeLong(hashA[i]);
+            }
+            VarInts.writeUnsigned(out, topKHolder.getCapacity());
+            VarInts.writeUnsigned(out, store.getTotalCount());
+            for (int i = 0, size = store.size(); i < size; i++) {
+                VarInts.writeUnsigned(out, store.get(i));
+            }
+
+            long[] values = new long[topKHolder.size()];
+            long[] counts = new long[topKHolder.size()];
+            int held = topKHolder.copyTo(values, counts);
+            VarInts.writeUnsigned(out, held);
+            for (int i = 0; i < held; i++) {
+                VarInts.writeSigned(out, values[i]);
+                VarInts.writeUnsigned(out, counts[i]);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize a sketch written by toByteArray. Sketches written before hash schemes were added are read
+     * with the legacy scheme.
+     *
+     * @param data the serialized sketch
+     * @return the sketch
+     * @throws IllegalArgumentException if the data is not a serialized sketch
+     */
+    public static CountMinSketch fromByteArray(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            int magic = in.readInt();
+            if (magic != FORMAT_MAGIC && magic != FORMAT_MAGIC_V1) {
+                throw new IllegalArgumentException("Data is not a serialized count min sketch");
+            }
+            int depth = in.readInt();
+            int width = in.readInt();
+            HashScheme hashScheme = magic == FORMAT_MAGIC_V1
+                    ? HashScheme.LEGACY
+                    : HashScheme.values()[in.readUnsignedByte()];
+            long[] hashA = new long[depth];
+            for (int i = 0; i < depth; i++) {
+                hashA[i] = in.readLong();
+            }
+            CountMinSketch cms = new CountMinSketch(depth, width, hashA, hashScheme, (int) VarInts.readUnsigned(in));
+            cms.store.addTotalCount(VarInts.readUnsigned(in));
+            for (int i = 0, size = cms.store.size(); i < size; i++) {
+                cms.store.set(i, VarInts.readUnsigned(in));
+            }
+
+            int held = (int) VarInts.readUnsigned(in);
+            for (int i = 0; i < held; i++) {
+                long value = VarInts.readSigned(in);
+                cms.topKHolder.addToTopKList(value, VarInts.readUnsigned(in));
+            }
+            return cms;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed serialized count min sketch", e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Unknown hash scheme in serialized count min sketch", e);
+        }
+    }
+
+    /**
+     * @return an empty sketch with the same dimensions, hash seeds, top K capacity and kind of storage, that this
+     * one can merge with; the copy of a mapped sketch is held in direct memory
+     */
+    CountMinSketch emptyCopy() {
+        CountMinSketch copy = new CountMinSketch(depth, width, hashA.clone(), hashScheme, topKHolder.getCapacity(),
+                store.emptyCopy());
+        copy.updateMode = updateMode;
+        copy.estimator = estimator;
+        return copy;
+    }
+
+    /**
+     * @return a copy of the counters, total count and heavy hitters of this sketch, held on the heap, that can be
+     * merged into and read without affecting this sketch
+     */
+    public CountMinSketch copy() {
+        CountMinSketch copy = new CountMinSketch(depth, width, hashA.clone(), hashScheme, topKHolder.getCapacity());
+        copy.copyFrom(this);
+        copy.updateMode = updateMode;
+        copy.estimator = estimator;
+        return copy;
+    }
+
+    /**
+     * Replace the counters, total count and heavy hitters of this sketch with those of another one, keeping the
+     * storage, update mode and estimator of this sketch
+     *
+     * @param other the sketch to copy, with the same width, depth, hash scheme and hash seeds
+     * @throws IllegalArgumentException if the sketches are not compatible
+     */
+    void copyFrom(CountMinSketch other) {
+        if (other.width != width || other.depth != depth || other.hashScheme != hashScheme
+                || !Arrays.equals(other.hashA, hashA)) {
+            throw new IllegalArgumentException("Cannot copy count min sketch with width [" + other.width
+                    + "], depth [" + other.depth + "] and hash scheme [" + other.hashScheme + "] into sketch with width ["
+                    + width + "], depth [" + depth + "] and hash scheme [" + hashScheme + "] or different hash seeds");
+        }
+        clear();
+        for (int i = 0, size = store.size(); i < size; i++) {
+            long counter = other.store.get(i);
+            if (counter != 0) {
+                store.set(i, counter);
+            }
+        }
+        store.addTotalCount(other.store.getTotalCount());
+        long[] values = new long[other.topKHolder.size()];
+        long[] counts = new long[other.topKHolder.size()];
+        int held = other.topKHolder.copyTo(values, counts);
+        for (int i = 0; i < held; i++) {
+            topKHolder.addToTopKList(values[i], counts[i]);
+        }
+    }
+
+    /**
+     * Reset all counters and heavy hitters
+     */
+    public void clear() {
+        store.clear();
+        topKHolder.clear();
+    }
+
+    /**
+     * Release the counters; a mapped sketch writes them to its file. The sketch must not be used after closing.
+     */
+    public void close() {
+        store.close();
+    }
+
+    /**
+     * @return the depth of the table
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the width of the table
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return how the count of an item is estimated by estimateCount
+     */
+    Estimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * @return how the column of an item is computed in each row
+     */
+    public HashScheme getHashScheme() {
+        return hashScheme;
+    }
+
+    /**
+     * @param item the item to hash
+     * @return the hash of the item shared by all rows, to pass to index
+     */
+    long mix(long item) {
+        return hashScheme == HashScheme.MIX64 ? mix64(item, hashA[0]) : 0;
+    }
+
+    /**
+     * @param item  the item to hash
+     * @param mixed the result of mix(item)
+     * @param row   the row of the table
+     * @return the index of the item's counter of the row in the table
+     */
+    int index(long item, long mixed, int row) {
+        return row * width + column(item, mixed, row);
+    }
+
+    /**
+     * @param index the index of a counter in the table
+     * @return the counter
+     */
+    long counterAt(int index) {
+        return store.get(index);
+    }
+
+    /**
+     * Add the given counters and total count to this sketch, which must have the same dimensions and seeds
+     */
+    void addCounters(long[] counters, long count) {
+        for (int i = 0; i < counters.length; i++) {
+            store.add(i, counters[i]);
+        }
+        store.addTotalCount(count);
+    }
+
+    /**
+     * @return the sum of all counts added
+     */
+    public long getTotalCount() {
+        return store.getTotalCount();
+    }
+
     /**
      * @return how many top k values the cms holds
      */
     public int getTopKValuesCount() {
-        return topKHolder.getAll().size();
+        return topKHolder.size();
     }
 
     /**
@@ -99,17 +717,59 @@ public class CountMinSketch {
      * @param k the k results to return
      * @return the topL results
      */
-    public Map<Object, Long> getTopK(int k) {
+    public Map<Long, Long> getTopK(int k) {
         return topKHolder.getTopK(k);
     }
 
 
-    private int hash(long item, int i) {
-        long hash = hashA[i] * item;
+    private int column(long item, long mixed, int i) {
+        return hashScheme == HashScheme.MIX64 ? column(mixed, i, mask) : hash(item, hashA[i], width);
+    }
+
+    /**
+     * @param item  the item to hash
+     * @param seed  the hash seed of the row
+     * @param width the width of the table
+     * @return the column of the item in the row
+     */
+    static int hash(long item, long seed, int width) {
+        long hash = seed * item;
         hash += hash >> 32;
         hash &= PRIME_MODULUS;
         return ((int) hash) % width;
     }
 
+    /**
+     * The 64-bit finalizer of murmur3 over the item and a seed; every bit of the item affects every bit of the hash
+     *
+     * @param item the item to hash
+     * @param seed the hash seed
+     * @return the hash
+     */
+    static long mix64(long item, long seed) {
+        long h = item ^ seed;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Double hashing (Kirsch-Mitzenmacher): the column of row i is h1 + i * h2, where h1 and h2 are the two
+     * halves of the mixed hash. h2 is made odd so the columns of the rows differ for a power of two width.
+     *
+     * @param mixed the result of mix64
+     * @param row   the row of the table
+     * @param mask  the width of the table minus one, for a power of two width
+     * @return the column of the item in the row
+     */
+    static int column(long mixed, int row, int mask) {
+        int h1 = (int) mixed;
+        int h2 = (int) (mixed >>> 32) | 1;
+        return (h1 + row * h2) & mask;
+    }
+
 
 }
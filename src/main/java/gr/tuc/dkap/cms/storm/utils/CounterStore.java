@@ -0,0 +1,59 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+/**
+ * Storage of the counters of a count min sketch, and of the total count added to them. Counters are addressed by
+ * their index in the row-major table of the sketch. Implementations keep the counters in a long[] on the heap, in
+ * direct memory outside the heap, or in a memory mapped file.
+ */
+public interface CounterStore {
+
+    /**
+     * @return the number of counters
+     */
+    int size();
+
+    /**
+     * @param index the index of the counter
+     * @return the counter
+     */
+    long get(int index);
+
+    /**
+     * @param index the index of the counter
+     * @param value the new value of the counter
+     */
+    void set(int index, long value);
+
+    /**
+     * @param index the index of the counter
+     * @param delta the amount to add to the counter
+     * @return the new value of the counter
+     */
+    long add(int index, long delta);
+
+    /**
+     * @return the sum of all counts added to the sketch
+     */
+    long getTotalCount();
+
+    /**
+     * @param count the amount to add to the total count
+     */
+    void addTotalCount(long count);
+
+    /**
+     * Reset all counters and the total count to 0
+     */
+    void clear();
+
+    /**
+     * @return an empty store of the same size, in memory of the same kind; a store of a mapped file returns a store
+     * in direct memory, since the file belongs to this store
+     */
+    CounterStore emptyCopy();
+
+    /**
+     * Release the store. Counters must not be used after closing.
+     */
+    void close();
+}
@@ -0,0 +1,116 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Counter store in direct memory, outside the Java heap, so that very large sketches do not grow the heap or the
+ * time of garbage collections. The memory is released when the store is closed, or else when it is garbage collected;
+ * the JVM limits it with -XX:MaxDirectMemorySize.
+ */
+public class DirectCounterStore implements CounterStore {
+
+    private final int size;
+    private ByteBuffer counters; // null once closed
+    private long totalCount;
+
+    /**
+     * @param size the number of counters, at most Integer.MAX_VALUE / 8
+     */
+    public DirectCounterStore(int size) {
+        if (size > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("Too many counters for one buffer: " + size);
+        }
+        this.size = size;
+        counters = ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long get(int index) {
+        return counters.getLong(index << 3);
+    }
+
+    @Override
+    public void set(int index, long value) {
+        counters.putLong(index << 3, value);
+    }
+
+    @Override
+    public long add(int index, long delta) {
+        long value = counters.getLong(index << 3) + delta;
+        counters.putLong(index << 3, value);
+        return value;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    @Override
+    public void addTotalCount(long count) {
+        totalCount += count;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            counters.putLong(i << 3, 0L);
+        }
+        totalCount = 0;
+    }
+
+    @Override
+    public CounterStore emptyCopy() {
+        return new DirectCounterStore(size);
+    }
+
+    @Override
+    public void close() {
+        if (counters != null) {
+            free(counters);
+            counters = null;
+        }
+    }
+
+    /**
+     * Release the memory of a direct buffer now rather than when the buffer is garbage collected, which may be too
+     * late for -XX:MaxDirectMemorySize when large buffers are allocated often. The cleaner of the buffer is reached
+     * by reflection: through Unsafe.invokeCleaner from Java 9, and through DirectByteBuffer.cleaner() before. If
+     * neither is accessible the memory is left to the garbage collector.
+     *
+     * @param buffer the direct buffer, which must not be used afterwards
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            // the buffer is freed when it is garbage collected
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.util.Arrays;
+
+/**
+ * Counter store in a long[] on the heap
+ */
+public class HeapCounterStore implements CounterStore {
+
+    private final long[] counters;
+    private long totalCount;
+
+    /**
+     * @param size the number of counters
+     */
+    public HeapCounterStore(int size) {
+        counters = new long[size];
+    }
+
+    @Override
+    public int size() {
+        return counters.length;
+    }
+
+    @Override
+    public long get(int index) {
+        return counters[index];
+    }
+
+    @Override
+    public void set(int index, long value) {
+        counters[index] = value;
+    }
+
+    @Override
+    public long add(int index, long delta) {
+        return counters[index] += delta;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    @Override
+    public void addTotalCount(long count) {
+        totalCount += count;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(counters, 0L);
+        totalCount = 0;
+    }
+
+    @Override
+    public CounterStore emptyCopy() {
+        return new HeapCounterStore(counters.length);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,111 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.util.Map;
+
+/**
+ * Small exact-count cache in front of a windowed count min sketch. Adds of a cached item update one counter in a
+ * primitive hash map, instead of one counter per row of the sketch. When the cache is full and an item misses, the
+ * cold items, whose pending count is at most the mean pending count, are evicted: their counts are added to the
+ * sketch. Hot items stay cached with their pending counts, so in a skewed stream the heaviest items rarely reach the
+ * sketch, while a uniform stream flushes the whole cache at once.
+ * <p/>
+ * estimateCount adds the pending count of an item to the estimate of the sketch. Everything else that reads the
+ * sketch as a whole (top K, rotation, serialization) must flush the cache first.
+ */
+public class HeavyHitterCache {
+
+    private final int capacity;
+    private final WindowedCountMinSketch sketch;
+    private final LongLongHashMap pending; // item -> count not added to the sketch yet
+    private final long[] evictedItems; // scratch for evictions
+    private final long[] evictedCounts;
+    private long pendingTotal; // sum of the pending counts
+    private long adds; // adds since the last reset of the hit ratio
+    private long hits; // adds of cached items since the last reset of the hit ratio
+
+    /**
+     * @param capacity the max number of cached items
+     * @param sketch   the sketch that evicted counts are added to
+     */
+    public HeavyHitterCache(int capacity, WindowedCountMinSketch sketch) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.sketch = sketch;
+        pending = new LongLongHashMap(capacity);
+        evictedItems = new long[capacity];
+        evictedCounts = new long[capacity];
+    }
+
+    /**
+     * Add count occurrences of an item, to the cache
+     *
+     * @param item  the item to add
+     * @param count the occurrences to add
+     */
+    public void add(long item, long count) {
+        adds++;
+        if (pending.containsKey(item)) {
+            hits++;
+        } else if (pending.size() == capacity) {
+            evictCold();
+        }
+        pending.addTo(item, count);
+        pendingTotal += count;
+    }
+
+    /**
+     * Add the counts of the items with at most the mean pending count to the sketch and remove them from the cache
+     */
+    private void evictCold() {
+        int size = pending.copyTo(evictedItems, evictedCounts);
+        long mean = pendingTotal / size;
+        for (int i = 0; i < size; i++) {
+            if (evictedCounts[i] <= mean) {
+                sketch.add(evictedItems[i], evictedCounts[i]);
+                pending.remove(evictedItems[i]);
+                pendingTotal -= evictedCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Add all pending counts to the sketch and empty the cache
+     */
+    public void flush() {
+        int size = pending.copyTo(evictedItems, evictedCounts);
+        for (int i = 0; i < size; i++) {
+            sketch.add(evictedItems[i], evictedCounts[i]);
+        }
+        pending.clear();
+        pendingTotal = 0;
+    }
+
+    /**
+     * @param item the item to estimate
+     * @return the estimate of the sketch plus the pending count of the item
+     */
+    public long estimateCount(long item) {
+        return sketch.estimateCount(item) + pending.get(item, 0L);
+    }
+
+    /**
+     * @param k the number of results
+     * @return the top K of the sketch, after flushing the cache
+     */
+    public Map<Long, Long> getTopK(int k) {
+        flush();
+        return sketch.getTopK(k);
+    }
+
+    /**
+     * @return the share of adds since the last call that found their item cached
+     */
+    public double getAndResetHitRatio() {
+        double ratio = adds == 0 ? 0 : (double) hits / adds;
+        adds = 0;
+        hits = 0;
+        return ratio;
+    }
+}
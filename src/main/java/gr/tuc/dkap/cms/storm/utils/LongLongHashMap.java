@@ -0,0 +1,242 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) hash map from primitive long to primitive long.
+ * Lookups and updates do not allocate, unlike java.util.HashMap with boxed keys.
+ * The key 0 is used to mark free slots, so it is held separately.
+ */
+public class LongLongHashMap {
+
+    private static final long FREE_KEY = 0L;
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size; // number of keys, excluding the zero key
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public LongLongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize how many keys the map is expected to hold without resizing
+     */
+    public LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @param key          the key to look for
+     * @param defaultValue the value to return if the key is missing
+     * @return the value of the key, or defaultValue if missing
+     */
+    public long get(long key, long defaultValue) {
+        if (key == FREE_KEY) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param key the key to look for
+     * @return true if the map holds the key
+     */
+    public boolean containsKey(long key) {
+        if (key == FREE_KEY) {
+            return hasZeroKey;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Add/Update a key's value
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void put(long key, long value) {
+        if (key == FREE_KEY) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > (keys.length >> 1)) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Add delta to a key's value, inserting the key with value delta if missing
+     *
+     * @param key   the key
+     * @param delta the value to add
+     * @return the new value of the key
+     */
+    public long addTo(long key, long delta) {
+        if (key == FREE_KEY) {
+            zeroValue = hasZeroKey ? zeroValue + delta : delta;
+            hasZeroKey = true;
+            return zeroValue;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                return values[slot] += delta;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if (++size > (keys.length >> 1)) {
+            rehash(keys.length << 1);
+        }
+        return delta;
+    }
+
+    /**
+     * Remove a key from the map
+     *
+     * @param key the key to remove
+     * @return true if the key was held
+     */
+    public boolean remove(long key) {
+        if (key == FREE_KEY) {
+            boolean had = hasZeroKey;
+            hasZeroKey = false;
+            return had;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY) {
+            if (keys[slot] == key) {
+                shiftKeys(slot);
+                size--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return how many keys the map holds
+     */
+    public int size() {
+        return hasZeroKey ? size + 1 : size;
+    }
+
+    /**
+     * Remove all keys, keeping the allocated capacity
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    /**
+     * Copy all keys and values to the given arrays, which must hold at least size() entries
+     *
+     * @param keysOut   the array to copy the keys to
+     * @param valuesOut the array to copy the values to
+     * @return the number of entries copied
+     */
+    public int copyTo(long[] keysOut, long[] valuesOut) {
+        int index = 0;
+        if (hasZeroKey) {
+            keysOut[index] = FREE_KEY;
+            valuesOut[index++] = zeroValue;
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != FREE_KEY) {
+                keysOut[index] = keys[slot];
+                valuesOut[index++] = values[slot];
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Backward shift deletion, so that probe sequences stay unbroken without tombstones
+     */
+    private void shiftKeys(int slot) {
+        while (true) {
+            int last = slot;
+            slot = (slot + 1) & mask;
+            long key;
+            while (true) {
+                key = keys[slot];
+                if (key == FREE_KEY) {
+                    keys[last] = FREE_KEY;
+                    return;
+                }
+                int ideal = slot(key);
+                // move the key back only if its ideal slot is not between last (exclusive) and slot (inclusive)
+                if (last <= slot ? (last >= ideal || ideal > slot) : (last >= ideal && ideal > slot)) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[last] = key;
+            values[last] = values[slot];
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != FREE_KEY) {
+                int slot = slot(key);
+                while (keys[slot] != FREE_KEY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        long h = key * PHI;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
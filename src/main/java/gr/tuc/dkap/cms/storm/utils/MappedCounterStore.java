@@ -0,0 +1,212 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Counter store in a memory mapped file, so that the counters of a very large sketch are held off the heap and paged
+ * by the operating system, and can be read by offline tools while or after the sketch counts. The counters are not a
+ * recovery point: CMSBolt clears them on start and restores its checkpoint into them, since the file also holds the
+ * rows counted after the checkpoint, which the spouts send again. The file has a header with the dimensions of the
+ * sketch and the total count, followed by the counters as little endian longs, row-major:
+ * <pre>
+ * int magic, int depth, int width, int hash scheme ordinal, long total count, 8 bytes reserved, counters...
+ * </pre>
+ * The hash seeds are not stored, since they are derived from the depth. The operating system writes changes to the
+ * file in the background; force() writes them synchronously.
+ */
+public class MappedCounterStore implements CounterStore {
+
+    private static final int FORMAT_MAGIC = 0x434D5346; // "CMSF"
+    private static final int HEADER_BYTES = 32;
+    private static final int TOTAL_COUNT_OFFSET = 16;
+
+    private final int depth;
+    private final int width;
+    private final int hashScheme;
+    private final int size;
+    private MappedByteBuffer buffer;
+    private boolean readOnly; // opened by open, for reading only
+
+    /**
+     * Open the file of a sketch, or create it if it does not exist or holds a sketch of different dimensions
+     *
+     * @param file       the file
+     * @param depth      the depth of the sketch
+     * @param width      the width of the sketch
+     * @param hashScheme the ordinal of the hash scheme of the sketch
+     * @throws IOException if the file cannot be opened or created
+     */
+    public MappedCounterStore(File file, int depth, int width, int hashScheme) throws IOException {
+        this(depth, width, hashScheme);
+        long length = HEADER_BYTES + 8L * size;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            boolean reuse = randomAccessFile.length() == length && matchesHeader(randomAccessFile);
+            if (!reuse) {
+                // a new file is all zeros: empty counters
+                randomAccessFile.setLength(0);
+                randomAccessFile.setLength(length);
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (!reuse) {
+                buffer.putInt(0, FORMAT_MAGIC);
+                buffer.putInt(4, depth);
+                buffer.putInt(8, width);
+                buffer.putInt(12, hashScheme);
+            }
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Map a file opened for reading, after its header is checked
+     */
+    private MappedCounterStore(RandomAccessFile randomAccessFile, int depth, int width, int hashScheme)
+            throws IOException {
+        this(depth, width, hashScheme);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + 8L * size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        readOnly = true;
+    }
+
+    /**
+     * Initializer of the dimensions, before the file is mapped
+     */
+    private MappedCounterStore(int depth, int width, int hashScheme) {
+        if (depth <= 0 || width <= 0 || (long) depth * width > (Integer.MAX_VALUE - HEADER_BYTES) / 8) {
+            throw new IllegalArgumentException("Invalid number of counters for one mapped file: " + depth + "x" + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.hashScheme = hashScheme;
+        this.size = depth * width;
+    }
+
+    /**
+     * Open the file of an existing sketch for reading only, with the dimensions of its header, e.g. for offline
+     * queries while a bolt still counts into it. The file is never written: counters cannot be changed through the
+     * store, and a file whose length does not match its header is rejected instead of resized.
+     *
+     * @param file the file
+     * @return the store
+     * @throws IOException if the file cannot be read or is not a sketch file
+     */
+    public static MappedCounterStore open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() < HEADER_BYTES || Integer.reverseBytes(randomAccessFile.readInt()) != FORMAT_MAGIC) {
+                throw new IOException("File [" + file + "] is not a count min sketch file");
+            }
+            int depth = Integer.reverseBytes(randomAccessFile.readInt());
+            int width = Integer.reverseBytes(randomAccessFile.readInt());
+            int hashScheme = Integer.reverseBytes(randomAccessFile.readInt());
+            if (depth <= 0 || width <= 0 || (long) depth * width > (Integer.MAX_VALUE - HEADER_BYTES) / 8
+                    || randomAccessFile.length() != HEADER_BYTES + 8L * depth * width) {
+                throw new IOException("Count min sketch file [" + file + "] of length [" + randomAccessFile.length()
+                        + "] does not hold the counters of its header: " + depth + "x" + width);
+            }
+            // the mapping stays valid after the file is closed
+            return new MappedCounterStore(randomAccessFile, depth, width, hashScheme);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private boolean matchesHeader(RandomAccessFile randomAccessFile) throws IOException {
+        randomAccessFile.seek(0);
+        return Integer.reverseBytes(randomAccessFile.readInt()) == FORMAT_MAGIC
+                && Integer.reverseBytes(randomAccessFile.readInt()) == depth
+                && Integer.reverseBytes(randomAccessFile.readInt()) == width
+                && Integer.reverseBytes(randomAccessFile.readInt()) == hashScheme;
+    }
+
+    /**
+     * @return the depth of the sketch of the file
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the width of the sketch of the file
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the ordinal of the hash scheme of the sketch of the file
+     */
+    public int getHashScheme() {
+        return hashScheme;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long get(int index) {
+        return buffer.getLong(HEADER_BYTES + (index << 3));
+    }
+
+    @Override
+    public void set(int index, long value) {
+        buffer.putLong(HEADER_BYTES + (index << 3), value);
+    }
+
+    @Override
+    public long add(int index, long delta) {
+        int offset = HEADER_BYTES + (index << 3);
+        long value = buffer.getLong(offset) + delta;
+        buffer.putLong(offset, value);
+        return value;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return buffer.getLong(TOTAL_COUNT_OFFSET);
+    }
+
+    @Override
+    public void addTotalCount(long count) {
+        buffer.putLong(TOTAL_COUNT_OFFSET, buffer.getLong(TOTAL_COUNT_OFFSET) + count);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(HEADER_BYTES + (i << 3), 0L);
+        }
+        buffer.putLong(TOTAL_COUNT_OFFSET, 0L);
+    }
+
+    @Override
+    public CounterStore emptyCopy() {
+        return new DirectCounterStore(size);
+    }
+
+    /**
+     * Write the changes to the file
+     */
+    public void force() {
+        if (!readOnly) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+}
@@ -0,0 +1,147 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the lines of a local file through memory mapped windows of the file, without copying or decoding them.
+ * It reads only the lines that start in a byte range of the file, so that several readers can read disjoint
+ * sections of the same file in parallel: a range that starts in the middle of a line skips to the next line, and the
+ * last line of a range is read up to its end even if it crosses the end of the range.
+ * <p/>
+ * Lines are returned as CharSequence views over the mapped bytes (one char per byte), valid until the next call.
+ */
+public class MappedLineReader {
+
+    private static final long MAP_WINDOW = 64L << 20; // bytes mapped at once
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long fileSize;
+    private long end; // lines must start before this offset
+    private MappedByteBuffer window;
+    private long windowStart; // file offset of the window
+    private long windowEnd;
+    private long position; // file offset of the next line
+    private long lineOffset; // file offset of the current line
+    private ByteBufferCharSequence line = new ByteBufferCharSequence();
+
+    /**
+     * @param path  the path of the file
+     * @param start the offset of the range, the first line read is the first one starting at or after it
+     * @param end   the offset after the range, the last line read is the last one starting before it
+     * @throws IOException if the file cannot be read
+     */
+    public MappedLineReader(String path, long start, long end) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        this.end = Math.min(end, fileSize);
+        position = start;
+        if (start > 0 && start < fileSize) {
+            // start is a line start only if it follows a new line
+            position = findNewLine(start - 1) + 1;
+        }
+    }
+
+    /**
+     * @param fileSize the size of the file
+     * @param parts    the number of ranges to split the file in
+     * @param part     the index of the range
+     * @return the start offset of the range, which is also the end offset of the previous range
+     */
+    public static long rangeStart(long fileSize, int parts, int part) {
+        return fileSize / parts * part + Math.min(part, fileSize % parts);
+    }
+
+    /**
+     * Move to the next line of the range
+     *
+     * @return false if there are no more lines in the range
+     * @throws IOException if the file cannot be read or a line is longer than the map window
+     */
+    public boolean next() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        long newLine = findNewLine(position);
+        int from = (int) (position - windowStart);
+        int to = (int) (newLine - windowStart);
+        if (to > from && window.get(to - 1) == '\r') {
+            to--;
+        }
+        line.set(window, from, to);
+        lineOffset = position;
+        position = newLine + 1;
+        return true;
+    }
+
+    /**
+     * @return the current line
+     */
+    public CharSequence line() {
+        return line;
+    }
+
+    /**
+     * @return the file offset of the current line
+     */
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return the file offset of the next line
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Close the file. Lines returned before must not be used after closing.
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Find the first new line at or after from, mapping windows that start at from as needed, so the whole line
+     * is in the current window
+     *
+     * @param from the offset to search from
+     * @return the offset of the new line, or the file size if there is none
+     */
+    private long findNewLine(long from) throws IOException {
+        if (window == null || from < windowStart || from >= windowEnd) {
+            map(from);
+        }
+        long p = from;
+        while (true) {
+            if (p == windowEnd) {
+                if (windowEnd >= fileSize) {
+                    return fileSize;
+                }
+                if (windowStart == from) {
+                    throw new IOException("Line at offset [" + from + "] is longer than [" + MAP_WINDOW + "] bytes");
+                }
+                map(from);
+                continue;
+            }
+            if (window.get((int) (p - windowStart)) == '\n') {
+                return p;
+            }
+            p++;
+        }
+    }
+
+    private void map(long offset) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_WINDOW, fileSize - offset));
+        windowStart = offset;
+        windowEnd = offset + window.limit();
+    }
+}
@@ -0,0 +1,70 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer queue for exactly one producer thread and one consumer thread. The producer and
+ * the consumer each publish their position with an ordered write, and read the position of the other thread only
+ * when their cached copy says the buffer is full or empty, so most offers and polls touch no shared cache line but
+ * the slot itself.
+ *
+ * @param <E> the type of the elements
+ */
+public class SpscQueue<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // position of the next poll, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // position of the next offer, written by the producer
+    private long cachedHead; // producer's copy of head
+    private long cachedTail; // consumer's copy of tail
+
+    /**
+     * @param capacity the max number of elements, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.bitCount(capacity) == 1 ? capacity : Integer.highestOneBit(Math.max(capacity, 1)) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, called by the producer thread only
+     *
+     * @param element the element, not null
+     * @return false if the queue is full
+     */
+    public boolean offer(E element) {
+        long position = tail.get();
+        if (position - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+            if (position - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) position & mask] = element;
+        tail.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, called by the consumer thread only
+     *
+     * @return the element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        if (position >= cachedTail) {
+            cachedTail = tail.get();
+            if (position >= cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) position & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(position + 1);
+        return element;
+    }
+}
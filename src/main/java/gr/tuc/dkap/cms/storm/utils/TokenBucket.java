@@ -0,0 +1,43 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+/**
+ * Non-blocking token bucket rate limiter. Tokens are added at a fixed rate up to the capacity of the bucket, and
+ * callers take as many tokens as are available instead of sleeping until they are, so a spout can emit what the
+ * rate allows and return to its executor.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens; // starts empty, so the first calls do not send a burst
+    private long lastRefillTime;
+
+    /**
+     * @param ratePerSecond the tokens added per second
+     * @param capacity      the max tokens held, the largest burst after an idle period
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        if (ratePerSecond <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid token bucket rate [" + ratePerSecond + "] or capacity ["
+                    + capacity + "]");
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Take up to max tokens, without waiting
+     *
+     * @param max the max tokens to take
+     * @return the tokens taken, 0 if none are available
+     */
+    public int tryAcquire(int max) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillTime) * tokensPerNano);
+        lastRefillTime = now;
+        int acquired = (int) Math.min(max, tokens);
+        tokens -= acquired;
+        return acquired;
+    }
+}
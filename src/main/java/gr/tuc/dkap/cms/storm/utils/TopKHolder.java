@@ -3,56 +3,200 @@ package gr.tuc.dkap.cms.storm.utils;
 import java.util.*;
 
 /**
- * Helper class to hold only the top K values of the CountMinSketch algorithm
+ * Helper class to hold only the top K values of the CountMinSketch algorithm.
+ * Values are kept in a bounded min-heap (smallest count at the root) with an index map from value
+ * to heap position, so updates, evictions and threshold checks cost O(log K) or O(1).
  */
 public class TopKHolder {
 
-    // (value -> count)
-    protected Map<Object, Long> items = new HashMap<Object, Long>();
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private int capacity; // max number of values to hold
+    private int size; // number of values currently held
+    private long total; // running sum of the counts held
+    private long[] values; // heap of values
+    private long[] counts; // heap of counts, parallel to values
+    // (value -> heap position)
+    protected LongLongHashMap positions;
+
+    public TopKHolder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the max number of values to hold
+     */
+    public TopKHolder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.values = new long[capacity];
+        this.counts = new long[capacity];
+        this.positions = new LongLongHashMap(capacity);
+    }
 
     /**
-     * Add/Update a value's count
+     * Add/Update a value's count. If the holder is full the value is added only if its count is greater
+     * than the smallest count held, which is then evicted.
      *
      * @param value the value to add
      * @param count the count of the value
      */
-    public void addToTopKList(Object value, Long count) {
-        items.put(value, count);
+    public void addToTopKList(long value, long count) {
+        int position = (int) positions.get(value, -1);
+        if (position >= 0) {
+            long previous = counts[position];
+            counts[position] = count;
+            total += count - previous;
+            if (count > previous) {
+                siftDown(position);
+            } else {
+                siftUp(position);
+            }
+            return;
+        }
+
+        if (size < capacity) {
+            values[size] = value;
+            counts[size] = count;
+            positions.put(value, size);
+            total += count;
+            siftUp(size++);
+        } else if (count > counts[0]) {
+            positions.remove(values[0]);
+            total += count - counts[0];
+            values[0] = value;
+            counts[0] = count;
+            positions.put(value, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @param value the value to check
+     * @return true if the value is held
+     */
+    public boolean contains(long value) {
+        return positions.containsKey(value);
     }
 
+    /**
+     * @return the count a new value must exceed to enter the holder, 0 while the holder is not full
+     */
+    public long getMinCount() {
+        return size < capacity ? 0 : counts[0];
+    }
 
     /**
-     * @return all the values with the count
+     * @return the sum of the counts held
      */
-    public Map<Object, Long> getAll() {
-        return items;
+    public long getTotal() {
+        return total;
     }
 
+    /**
+     * @return how many values are held
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the max number of values to hold
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copy the held values and their counts (in heap order) to the given arrays, which must hold size() entries
+     *
+     * @param valuesOut the array to copy the values to
+     * @param countsOut the array to copy the counts to
+     * @return the number of entries copied
+     */
+    public int copyTo(long[] valuesOut, long[] countsOut) {
+        System.arraycopy(values, 0, valuesOut, 0, size);
+        System.arraycopy(counts, 0, countsOut, 0, size);
+        return size;
+    }
+
+    /**
+     * Remove all values
+     */
+    public void clear() {
+        positions.clear();
+        size = 0;
+        total = 0;
+    }
 
     /**
      * Query for the topK values
      *
      * @param topK the k values to query for
-     * @return top K values with count for each value
+     * @return top K values with count for each value, sorted by count descending
      */
-    public Map<Object, Long> getTopK(int topK) {
-
-        List list = new LinkedList(items.entrySet());
-        Collections.sort(list, new Comparator() {
+    public Map<Long, Long> getTopK(int topK) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
             @Override
-            public int compare(Object o1, Object o2) {
-                return ((Comparable) ((Map.Entry) (o2)).getValue()).compareTo(((Map.Entry) (o1)).getValue());
+            public int compare(Integer o1, Integer o2) {
+                long c1 = counts[o1];
+                long c2 = counts[o2];
+                return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
             }
         });
 
-        Map<Object, Long> globalTopKResults = new LinkedHashMap<Object, Long>();
-        for (Iterator it = list.iterator(); it.hasNext(); ) {
-            Map.Entry entry = (Map.Entry) it.next();
-            globalTopKResults.put(entry.getKey(), (Long) entry.getValue());
+        Map<Long, Long> topKResults = new LinkedHashMap<Long, Long>();
+        for (int i = 0; i < size && i < topK; i++) {
+            topKResults.put(values[order[i]], counts[order[i]]);
         }
-        return globalTopKResults;
+        return topKResults;
     }
 
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[parent] <= counts[position]) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
 
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long value = values[i];
+        long count = counts[i];
+        values[i] = values[j];
+        counts[i] = counts[j];
+        values[j] = value;
+        counts[j] = count;
+        positions.put(values[i], i);
+        positions.put(values[j], j);
+    }
 
 }
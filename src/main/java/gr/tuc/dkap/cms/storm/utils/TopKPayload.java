@@ -0,0 +1,126 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Top K results as primitive arrays of user ids and counts, sorted by user id, with a compact binary encoding:
+ * the number of results, the first user id as a signed varint and every next one as the varint delta from the
+ * previous one, then the counts as varints. Close user ids take one or two bytes each instead of a decimal string.
+ */
+public class TopKPayload {
+
+    private final long[] userIds; // sorted
+    private final long[] counts;
+
+    /**
+     * @param userIds the user ids, sorted
+     * @param counts  the count of each user id
+     */
+    private TopKPayload(long[] userIds, long[] counts) {
+        this.userIds = userIds;
+        this.counts = counts;
+    }
+
+    /**
+     * @param topK the top K results
+     * @return the payload of the results
+     */
+    public static TopKPayload of(Map<Long, Long> topK) {
+        long[] userIds = new long[topK.size()];
+        int size = 0;
+        for (Long userId : topK.keySet()) {
+            userIds[size++] = userId;
+        }
+        Arrays.sort(userIds);
+        long[] counts = new long[size];
+        for (int i = 0; i < size; i++) {
+            counts[i] = topK.get(userIds[i]);
+        }
+        return new TopKPayload(userIds, counts);
+    }
+
+    /**
+     * @return the encoded payload
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(userIds.length * 4 + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            VarInts.writeUnsigned(out, userIds.length);
+            long previous = 0;
+            for (int i = 0; i < userIds.length; i++) {
+                if (i == 0) {
+                    VarInts.writeSigned(out, userIds[0]);
+                } else {
+                    VarInts.writeUnsigned(out, userIds[i] - previous);
+                }
+                previous = userIds[i];
+            }
+            for (long count : counts) {
+                VarInts.writeUnsigned(out, count);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a payload written by toByteArray
+     *
+     * @param data the encoded payload
+     * @return the payload
+     * @throws IllegalArgumentException if the data is not an encoded payload
+     */
+    public static TopKPayload fromByteArray(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            int size = (int) VarInts.readUnsigned(in);
+            if (size < 0 || size > data.length) {
+                throw new IllegalArgumentException("Malformed top K payload of [" + size + "] results");
+            }
+            long[] userIds = new long[size];
+            long[] counts = new long[size];
+            for (int i = 0; i < size; i++) {
+                userIds[i] = i == 0 ? VarInts.readSigned(in) : userIds[i - 1] + VarInts.readUnsigned(in);
+            }
+            for (int i = 0; i < size; i++) {
+                counts[i] = VarInts.readUnsigned(in);
+            }
+            return new TopKPayload(userIds, counts);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed top K payload", e);
+        }
+    }
+
+    /**
+     * @return the number of results
+     */
+    public int size() {
+        return userIds.length;
+    }
+
+    /**
+     * @param i the index of a result
+     * @return the user id of the result, user ids are sorted
+     */
+    public long getUserId(int i) {
+        return userIds[i];
+    }
+
+    /**
+     * @param i the index of a result
+     * @return the count of the result
+     */
+    public long getCount(int i) {
+        return counts[i];
+    }
+}
@@ -0,0 +1,67 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable length (LEB128) encoding of longs, so that small counters take one or two bytes instead of eight
+ */
+public final class VarInts {
+
+    private VarInts() {
+    }
+
+    /**
+     * Write a non negative value using 7 bits per byte
+     *
+     * @param out   the output to write to
+     * @param value the value to write
+     * @throws IOException if the output fails
+     */
+    public static void writeUnsigned(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Write a value that may be negative, using zig-zag encoding so that small negative values stay small
+     *
+     * @param out   the output to write to
+     * @param value the value to write
+     * @throws IOException if the output fails
+     */
+    public static void writeSigned(DataOutput out, long value) throws IOException {
+        writeUnsigned(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * @param in the input to read from
+     * @return the value written by writeUnsigned
+     * @throws IOException if the input fails or holds a malformed value
+     */
+    public static long readUnsigned(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length value");
+    }
+
+    /**
+     * @param in the input to read from
+     * @return the value written by writeSigned
+     * @throws IOException if the input fails or holds a malformed value
+     */
+    public static long readSigned(DataInput in) throws IOException {
+        long value = readUnsigned(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,327 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Count min sketch over a sliding window, held as a ring of sub-sketches (panes) with the same dimensions and
+ * hash seeds. New items are added to the current pane only; rotate() moves to the next pane and clears it, so the
+ * counts of the oldest pane age out. Memory is bounded by the number of panes, not by the stream length.
+ * <ul>
+ * <li>one pane, never rotated: counts the whole stream</li>
+ * <li>one pane, rotated every window: tumbling window</li>
+ * <li>N panes, rotated every window/N: sliding window</li>
+ * </ul>
+ */
+public class WindowedCountMinSketch {
+
+    private CountMinSketch[] panes;
+    private int current; // index of the pane new items are added to
+    private CountMinSketch merged; // the panes merged by toCountMinSketch, reused so its storage is allocated once
+
+    /**
+     * @param error        expected error
+     * @param confidence   expected confidence
+     * @param topKCapacity max number of heavy hitters to hold in each pane
+     * @param paneCount    the number of panes in the window
+     */
+    public WindowedCountMinSketch(double error, double confidence, int topKCapacity, int paneCount) {
+        this(error, confidence, topKCapacity, paneCount, CountMinSketch.HashScheme.LEGACY);
+    }
+
+    /**
+     * @param error        expected error
+     * @param confidence   expected confidence
+     * @param topKCapacity max number of heavy hitters to hold in each pane
+     * @param paneCount    the number of panes in the window
+     * @param hashScheme   how the column of an item is computed in each row
+     */
+    public WindowedCountMinSketch(double error, double confidence, int topKCapacity, int paneCount,
+                                  CountMinSketch.HashScheme hashScheme) {
+        this(new CountMinSketch(error, confidence, topKCapacity, hashScheme), paneCount);
+    }
+
+    /**
+     * Window whose first pane is the given empty sketch and the other panes are empty copies of it, in the same
+     * kind of storage. With a mapped first pane and a single pane, the window counts into the mapped file.
+     *
+     * @param firstPane the first pane
+     * @param paneCount the number of panes in the window
+     */
+    public WindowedCountMinSketch(CountMinSketch firstPane, int paneCount) {
+        if (paneCount < 1) {
+            throw new IllegalArgumentException("Pane count must be positive: " + paneCount);
+        }
+        panes = new CountMinSketch[paneCount];
+        panes[0] = firstPane;
+        for (int i = 1; i < paneCount; i++) {
+            panes[i] = panes[0].emptyCopy();
+        }
+    }
+
+    /**
+     * Initializer for a deserialized window
+     */
+    private WindowedCountMinSketch(CountMinSketch[] panes, int current) {
+        this.panes = panes;
+        this.current = current;
+    }
+
+    /**
+     * @param updateMode how counters are updated when an item is added
+     */
+    public void setUpdateMode(CountMinSketch.UpdateMode updateMode) {
+        for (CountMinSketch pane : panes) {
+            pane.setUpdateMode(updateMode);
+        }
+        if (merged != null) {
+            merged.setUpdateMode(updateMode);
+        }
+    }
+
+    /**
+     * @param estimator how the count of an item is estimated by estimateCount
+     */
+    public void setEstimator(CountMinSketch.Estimator estimator) {
+        for (CountMinSketch pane : panes) {
+            pane.setEstimator(estimator);
+        }
+        if (merged != null) {
+            merged.setEstimator(estimator);
+        }
+    }
+
+    /**
+     * Add item to the current pane
+     *
+     * @param item the item to add
+     */
+    public void add(long item) {
+        panes[current].add(item, 1);
+    }
+
+    /**
+     * Add count occurrences of item to the current pane
+     *
+     * @param item  the item to add
+     * @param count the occurrences to add
+     */
+    public void add(long item, long count) {
+        panes[current].add(item, count);
+    }
+
+    /**
+     * Estimate the count of an item over the whole window, summing the counters of all panes in each row. Like
+     * CountMinSketch.estimateCount, it only reads the counters.
+     *
+     * @param item the item to estimate value
+     * @return the estimated value using cms
+     */
+    public long estimateCount(long item) {
+        if (panes.length == 1) {
+            return panes[0].estimateCount(item);
+        }
+        long mixed = panes[0].mix(item);
+        long[] rowCounters = new long[panes[0].getDepth()];
+        long res = Long.MAX_VALUE;
+        for (int row = 0; row < rowCounters.length; row++) {
+            int index = panes[0].index(item, mixed, row);
+            long counter = 0;
+            for (CountMinSketch pane : panes) {
+                counter += pane.counterAt(index);
+            }
+            rowCounters[row] = counter;
+            if (counter < res) {
+                res = counter;
+            }
+        }
+        if (panes[0].getEstimator() == CountMinSketch.Estimator.COUNT_MEAN_MIN) {
+            return CountMinSketch.countMeanMin(rowCounters, panes[0].getWidth(), getTotalCount());
+        }
+        return res;
+    }
+
+    /**
+     * Start a new pane, dropping the counts of the oldest one
+     */
+    public void rotate() {
+        current = (current + 1) % panes.length;
+        panes[current].clear();
+    }
+
+    /**
+     * @return the number of panes in the window
+     */
+    public int getPaneCount() {
+        return panes.length;
+    }
+
+    /**
+     * @return how many top k values the current pane holds
+     */
+    public int getTopKValuesCount() {
+        return panes[current].getTopKValuesCount();
+    }
+
+    /**
+     * @return the share of counters that some item of the window has been added to, as a measure of how full the
+     * sketch is; estimates degrade as it approaches 1
+     */
+    public double getFillRatio() {
+        int counters = panes[0].getDepth() * panes[0].getWidth();
+        int used = 0;
+        for (int i = 0; i < counters; i++) {
+            for (CountMinSketch pane : panes) {
+                if (pane.counterAt(i) != 0) {
+                    used++;
+                    break;
+                }
+            }
+        }
+        return (double) used / counters;
+    }
+
+    /**
+     * @return the sum of all counts in the window
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (CountMinSketch pane : panes) {
+            total += pane.getTotalCount();
+        }
+        return total;
+    }
+
+    /**
+     * Query for the Top K results of the window. The heavy hitters of all panes are re-estimated over the window.
+     *
+     * @param k the k results to return
+     * @return the topK results
+     */
+    public Map<Long, Long> getTopK(int k) {
+        if (panes.length == 1) {
+            return panes[0].getTopK(k);
+        }
+        return toCountMinSketch().getTopK(k);
+    }
+
+    /**
+     * @return the counts of the window merged in one sketch, e.g. to serialize them. With one pane this is the
+     * pane itself, not a copy. With several panes the same sketch is merged into again by the next call, so it
+     * must be read before then and not be kept or closed by the caller
+     */
+    public CountMinSketch toCountMinSketch() {
+        if (panes.length == 1) {
+            return panes[0];
+        }
+        if (merged == null) {
+            merged = panes[0].emptyCopy();
+        } else {
+            merged.clear();
+        }
+        for (CountMinSketch pane : panes) {
+            merged.merge(pane);
+        }
+        return merged;
+    }
+
+    /**
+     * @return a copy of the panes of the window, held on the heap, that is not affected by later adds or rotations
+     * of this window
+     */
+    public WindowedCountMinSketch copy() {
+        CountMinSketch[] copies = new CountMinSketch[panes.length];
+        for (int i = 0; i < panes.length; i++) {
+            copies[i] = panes[i].copy();
+        }
+        return new WindowedCountMinSketch(copies, current);
+    }
+
+    /**
+     * Replace the counts of all panes and the current pane with those of another window, keeping the storage of
+     * the panes of this window, e.g. to restore a deserialized window into mapped counters
+     *
+     * @param other the window to copy, with the same number of panes and compatible sketches
+     * @throws IllegalArgumentException if the windows are not compatible
+     */
+    public void copyFrom(WindowedCountMinSketch other) {
+        if (other.panes.length != panes.length) {
+            throw new IllegalArgumentException("Cannot copy window of [" + other.panes.length + "] panes into window of ["
+                    + panes.length + "] panes");
+        }
+        for (int i = 0; i < panes.length; i++) {
+            panes[i].copyFrom(other.panes[i]);
+        }
+        current = other.current;
+    }
+
+    /**
+     * Serialize the window: the index of the current pane, then each pane as written by CountMinSketch.toByteArray.
+     * Update modes and estimators are not serialized.
+     *
+     * @return the serialized window
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            VarInts.writeUnsigned(out, panes.length);
+            VarInts.writeUnsigned(out, current);
+            for (CountMinSketch pane : panes) {
+                byte[] paneBytes = pane.toByteArray();
+                VarInts.writeUnsigned(out, paneBytes.length);
+                out.write(paneBytes);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize a window written by toByteArray
+     *
+     * @param data the serialized window
+     * @return the window
+     * @throws IllegalArgumentException if the data is not a serialized window
+     */
+    public static WindowedCountMinSketch fromByteArray(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            int paneCount = (int) VarInts.readUnsigned(in);
+            int current = (int) VarInts.readUnsigned(in);
+            if (paneCount < 1 || current >= paneCount) {
+                throw new IllegalArgumentException("Malformed serialized window: [" + paneCount + "] panes, current ["
+                        + current + "]");
+            }
+            CountMinSketch[] panes = new CountMinSketch[paneCount];
+            for (int i = 0; i < paneCount; i++) {
+                byte[] paneBytes = new byte[(int) VarInts.readUnsigned(in)];
+                in.readFully(paneBytes);
+                panes[i] = CountMinSketch.fromByteArray(paneBytes);
+            }
+            return new WindowedCountMinSketch(panes, current);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed serialized window", e);
+        }
+    }
+
+    /**
+     * Release the counters of all panes; a mapped pane writes them to its file
+     */
+    public void close() {
+        for (CountMinSketch pane : panes) {
+            pane.close();
+        }
+        if (merged != null) {
+            merged.close();
+            merged = null;
+        }
+    }
+}
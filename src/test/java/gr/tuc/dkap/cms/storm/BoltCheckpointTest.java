@@ -0,0 +1,121 @@
+package gr.tuc.dkap.cms.storm;
+
+import gr.tuc.dkap.cms.storm.utils.WindowedCountMinSketch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoltCheckpointTest {
+
+    private static final String INPUT = "/data/Comments.xml;1000;42;[userScore];60;20";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsThroughTheCheckpointWriter() throws IOException {
+        WindowedCountMinSketch comments = new WindowedCountMinSketch(0.01, 0.99, 10, 3);
+        WindowedCountMinSketch scores = new WindowedCountMinSketch(0.01, 0.99, 10, 3);
+        for (long userId = 0; userId < 500; userId++) {
+            comments.add(userId % 17);
+            scores.add(userId % 5, userId);
+            if (userId % 200 == 199) {
+                comments.rotate();
+                scores.rotate();
+            }
+        }
+        Map<String, WindowedCountMinSketch> sketches = new LinkedHashMap<String, WindowedCountMinSketch>();
+        sketches.put("userComments", comments.copy());
+        sketches.put("userScore", scores.copy());
+        BoltCheckpoint checkpoint = new BoltCheckpoint(INPUT, false, 7L, 500L, new long[]{1024L, 2048L},
+                new long[]{10L, 20L}, sketches);
+
+        File file = BoltCheckpoint.file(folder.getRoot().getPath(), 3);
+        CheckpointWriter writer = new CheckpointWriter();
+        writer.write(file, checkpoint);
+        writer.close();
+
+        BoltCheckpoint read = BoltCheckpoint.read(file);
+        assertTrue(read.isOf(INPUT));
+        assertFalse(read.isOf(INPUT + "x"));
+        assertFalse(read.isComplete());
+        assertEquals(7L, read.getWindow());
+        assertEquals(500L, read.getProcessedTuples());
+        assertEquals(2, read.getSpoutTasks());
+        assertEquals(2048L, read.getSpoutOffset(1));
+        assertEquals(20L, read.getSpoutLines(1));
+        assertSameWindow(comments, read.getSketch("userComments"));
+        assertSameWindow(scores, read.getSketch("userScore"));
+        assertNull(read.getSketch("postComments"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // a checkpoint read from a file encodes to the same bytes
+        assertArrayEquals(checkpoint.toByteArray(), read.toByteArray());
+    }
+
+    @Test
+    public void aMissingFileHasNoCheckpoint() throws IOException {
+        assertNull(BoltCheckpoint.read(new File(folder.getRoot(), "missing.ckpt")));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNotACheckpoint() throws IOException {
+        File file = folder.newFile("other.ckpt");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+        } finally {
+            out.close();
+        }
+        BoltCheckpoint.read(file);
+    }
+
+    @Test
+    public void runIsCompleteOnlyWhenEveryTaskHasACompleteCheckpointOfTheInput() throws IOException {
+        String directory = folder.getRoot().getPath();
+        Map<String, WindowedCountMinSketch> sketches = new LinkedHashMap<String, WindowedCountMinSketch>();
+        sketches.put("userComments", new WindowedCountMinSketch(0.01, 0.99, 10, 1));
+        CheckpointWriter writer = new CheckpointWriter();
+        writer.write(BoltCheckpoint.file(directory, 0),
+                new BoltCheckpoint(INPUT, true, 0L, 1L, new long[]{5L}, new long[]{1L}, sketches));
+        writer.close();
+        assertFalse(BoltCheckpoint.isRunComplete(directory, 2, INPUT));
+        assertTrue(BoltCheckpoint.isRunComplete(directory, 1, INPUT));
+        assertFalse(BoltCheckpoint.isRunComplete(directory, 1, INPUT + "x"));
+    }
+
+    @Test
+    public void takesTheOldestRewindRequestOfASpoutTask() throws IOException {
+        String directory = folder.getRoot().getPath();
+        BoltCheckpoint.requestRewind(directory, 0, 1, 4096L, 40L);
+        BoltCheckpoint.requestRewind(directory, 2, 1, 1024L, 10L);
+        BoltCheckpoint.requestRewind(directory, 1, 0, 512L, 5L);
+
+        assertArrayEquals(new long[]{1024L, 10L}, BoltCheckpoint.takeRewind(directory, 3, 1));
+        // requests are deleted once taken, and the requests of other spout tasks are kept
+        assertNull(BoltCheckpoint.takeRewind(directory, 3, 1));
+        assertArrayEquals(new long[]{512L, 5L}, BoltCheckpoint.takeRewind(directory, 3, 0));
+    }
+
+    private static void assertSameWindow(WindowedCountMinSketch expected, WindowedCountMinSketch actual) {
+        assertEquals(expected.getPaneCount(), actual.getPaneCount());
+        assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        for (long item = 0; item < 20; item++) {
+            assertEquals("item " + item, expected.estimateCount(item), actual.estimateCount(item));
+        }
+        assertEquals(expected.getTopK(5), actual.getTopK(5));
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+}
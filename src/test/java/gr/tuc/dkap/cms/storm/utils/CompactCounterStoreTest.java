@@ -0,0 +1,103 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompactCounterStoreTest {
+
+    @Test
+    public void promotesTheBlockOfACounterThatOutgrowsItsWidth() {
+        CompactCounterStore store = new CompactCounterStore(1000);
+        assertEquals(255L, store.add(5, 255));
+        assertEquals(0, store.getPromotedBlockCount());
+        assertEquals(256L, store.add(5, 1));
+        assertEquals(1, store.getPromotedBlockCount());
+        assertEquals(70000L, store.add(6, 70000));
+        assertEquals(1, store.getPromotedBlockCount());
+        assertEquals(256L, store.get(5));
+        assertEquals(0, store.getSpilledCount());
+        // the counters of other blocks keep one byte
+        assertEquals(3L, store.add(999, 3));
+        assertEquals(1, store.getPromotedBlockCount());
+    }
+
+    @Test
+    public void spillsOnlyCountersPastThirtyTwoBits() {
+        CompactCounterStore store = new CompactCounterStore(300);
+        store.set(10, Integer.MAX_VALUE);
+        assertEquals(0, store.getSpilledCount());
+        store.add(10, 1);
+        assertEquals(1, store.getSpilledCount());
+        assertEquals(Integer.MAX_VALUE + 1L, store.get(10));
+        store.set(11, -1);
+        assertEquals(2, store.getSpilledCount());
+        assertEquals(-1L, store.get(11));
+        store.set(10, 7);
+        store.set(11, 0);
+        assertEquals(0, store.getSpilledCount());
+        assertEquals(7L, store.get(10));
+    }
+
+    @Test
+    public void clearResetsCountersAndWidths() {
+        CompactCounterStore store = new CompactCounterStore(300);
+        store.add(1, 1L << 40);
+        store.add(200, 1000);
+        store.addTotalCount(5);
+        store.clear();
+        assertEquals(0, store.getPromotedBlockCount());
+        assertEquals(0, store.getSpilledCount());
+        assertEquals(0L, store.getTotalCount());
+        for (int i = 0; i < store.size(); i++) {
+            assertEquals(0L, store.get(i));
+        }
+    }
+
+    @Test
+    public void matchesALongArrayUnderRandomUpdates() {
+        Random random = new Random(23);
+        // a size that leaves the last block partial
+        int size = 1000;
+        CompactCounterStore store = new CompactCounterStore(size);
+        long[] expected = new long[size];
+        for (int i = 0; i < 500000; i++) {
+            int index = random.nextInt(size);
+            if (random.nextInt(10) == 0) {
+                long value = random.nextInt(5) == 0 ? (random.nextBoolean() ? 1L << 33 : -3) : random.nextInt(70000);
+                store.set(index, value);
+                expected[index] = value;
+            } else {
+                long delta = random.nextInt(20) == 0 ? random.nextInt(100000) - 100 : random.nextInt(3);
+                expected[index] += delta;
+                assertEquals(expected[index], store.add(index, delta));
+            }
+            if (i % 10000 == 0) {
+                for (int j = 0; j < size; j++) {
+                    assertEquals("counter " + j, expected[j], store.get(j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compactSketchCountsLikeAHeapSketch() {
+        CountMinSketch heap = new CountMinSketch(0.01, 0.99, 10, CountMinSketch.HashScheme.MIX64,
+                CountMinSketch.Storage.HEAP);
+        CountMinSketch compact = new CountMinSketch(0.01, 0.99, 10, CountMinSketch.HashScheme.MIX64,
+                CountMinSketch.Storage.COMPACT);
+        Random random = new Random(29);
+        for (int i = 0; i < 200000; i++) {
+            long item = random.nextInt(10) == 0 ? random.nextInt(100000) : random.nextInt(20);
+            heap.add(item);
+            compact.add(item);
+        }
+        for (int i = 0; i < heap.getDepth() * heap.getWidth(); i++) {
+            assertEquals("counter " + i, heap.counterAt(i), compact.counterAt(i));
+        }
+        assertEquals(heap.getTopK(10), compact.getTopK(10));
+        assertEquals(heap.toByteArray().length, compact.toByteArray().length);
+    }
+}
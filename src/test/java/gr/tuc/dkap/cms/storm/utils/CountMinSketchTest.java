@@ -0,0 +1,133 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchTest {
+
+    private static final double ERROR = 0.01;
+    private static final double CONFIDENCE = 0.99;
+    private static final int TOP_K_CAPACITY = 20;
+
+    @Test
+    public void mergeCountsLikeOneSketchOfBothStreams() {
+        CountMinSketch left = new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY);
+        CountMinSketch right = new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY);
+        CountMinSketch both = new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY);
+        Random random = new Random(3);
+        for (int i = 0; i < 20000; i++) {
+            long item = skewed(random);
+            (i % 2 == 0 ? left : right).add(item);
+            both.add(item);
+        }
+        left.merge(right);
+
+        assertEquals(both.getTotalCount(), left.getTotalCount());
+        for (long item = -10; item < 1000; item++) {
+            assertEquals("item " + item, both.estimateCount(item), left.estimateCount(item));
+        }
+        // the heaviest items of either side are re-estimated against the merged counters
+        for (Map.Entry<Long, Long> entry : left.getTopK(5).entrySet()) {
+            assertEquals(both.estimateCount(entry.getKey()), entry.getValue().longValue());
+        }
+        assertEquals(both.getTopK(1).keySet(), left.getTopK(1).keySet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsASketchOfOtherDimensions() {
+        new CountMinSketch(ERROR, CONFIDENCE).merge(new CountMinSketch(ERROR / 2, CONFIDENCE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsASketchOfAnotherHashScheme() {
+        new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY, CountMinSketch.HashScheme.LEGACY)
+                .merge(new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY, CountMinSketch.HashScheme.MIX64));
+    }
+
+    @Test
+    public void serializationRoundTripsEveryHashScheme() {
+        for (CountMinSketch.HashScheme hashScheme : CountMinSketch.HashScheme.values()) {
+            CountMinSketch cms = filled(new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY, hashScheme));
+            CountMinSketch read = CountMinSketch.fromByteArray(cms.toByteArray());
+            assertSameSketch(cms, read);
+            // the copy can be merged with the original
+            read.merge(cms);
+            assertEquals(2 * cms.getTotalCount(), read.getTotalCount());
+        }
+    }
+
+    @Test
+    public void readsVersionOneSketchesWithTheLegacyHash() {
+        CountMinSketch cms = filled(new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY,
+                CountMinSketch.HashScheme.LEGACY));
+        byte[] v2 = cms.toByteArray();
+        // version 1 has no hash scheme byte after the magic, depth and width
+        ByteBuffer v1 = ByteBuffer.allocate(v2.length - 1);
+        v1.putInt(0x434D5301).put(v2, 4, 8).put(v2, 13, v2.length - 13);
+
+        CountMinSketch read = CountMinSketch.fromByteArray(v1.array());
+        assertEquals(CountMinSketch.HashScheme.LEGACY, read.getHashScheme());
+        assertSameSketch(cms, read);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDataThatIsNotASketch() {
+        CountMinSketch.fromByteArray(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATruncatedSketch() {
+        byte[] data = filled(new CountMinSketch(ERROR, CONFIDENCE)).toByteArray();
+        byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        CountMinSketch.fromByteArray(truncated);
+    }
+
+    @Test
+    public void estimatesNeverUndercount() {
+        CountMinSketch cms = new CountMinSketch(ERROR, CONFIDENCE, TOP_K_CAPACITY);
+        long[] exact = new long[1000];
+        Random random = new Random(5);
+        for (int i = 0; i < 50000; i++) {
+            long item = skewed(random);
+            cms.add(item);
+            exact[(int) item]++;
+        }
+        for (int item = 0; item < exact.length; item++) {
+            assertTrue("item " + item, cms.estimateCount(item) >= exact[item]);
+        }
+    }
+
+    /**
+     * @return an item in [0, 1000), mostly small ones
+     */
+    private static long skewed(Random random) {
+        double uniform = random.nextDouble();
+        return (long) (1000 * uniform * uniform * uniform);
+    }
+
+    private static CountMinSketch filled(CountMinSketch cms) {
+        Random random = new Random(9);
+        for (int i = 0; i < 10000; i++) {
+            cms.add(skewed(random) - 5, 1 + random.nextInt(3));
+        }
+        return cms;
+    }
+
+    private static void assertSameSketch(CountMinSketch expected, CountMinSketch actual) {
+        assertEquals(expected.getDepth(), actual.getDepth());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHashScheme(), actual.getHashScheme());
+        assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        for (int i = 0; i < expected.getDepth() * expected.getWidth(); i++) {
+            assertEquals("counter " + i, expected.counterAt(i), actual.counterAt(i));
+        }
+        assertEquals(expected.getTopK(TOP_K_CAPACITY), actual.getTopK(TOP_K_CAPACITY));
+    }
+}
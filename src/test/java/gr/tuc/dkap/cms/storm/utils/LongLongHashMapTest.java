@@ -0,0 +1,104 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongLongHashMapTest {
+
+    @Test
+    public void putGetAndAddTo() {
+        LongLongHashMap map = new LongLongHashMap();
+        map.put(5, 50);
+        map.put(-7, 70);
+        assertEquals(50L, map.get(5, -1));
+        assertEquals(70L, map.get(-7, -1));
+        assertEquals(-1L, map.get(6, -1));
+        assertEquals(53L, map.addTo(5, 3));
+        assertEquals(4L, map.addTo(8, 4));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void holdsTheZeroKeyApart() {
+        LongLongHashMap map = new LongLongHashMap();
+        assertFalse(map.containsKey(0));
+        assertEquals(2L, map.addTo(0, 2));
+        assertEquals(5L, map.addTo(0, 3));
+        assertTrue(map.containsKey(0));
+        assertEquals(1, map.size());
+        assertTrue(map.remove(0));
+        assertFalse(map.remove(0));
+        assertEquals(0, map.size());
+        assertEquals(-1L, map.get(0, -1));
+    }
+
+    @Test
+    public void keepsProbeSequencesAfterRemovingFromAChain() {
+        // a small map filled to its load factor holds long probe chains, whose middle keys are then removed
+        LongLongHashMap map = new LongLongHashMap(4);
+        for (long key = 1; key <= 64; key++) {
+            map.put(key, key * 10);
+        }
+        for (long key = 2; key <= 64; key += 3) {
+            assertTrue(map.remove(key));
+        }
+        for (long key = 1; key <= 64; key++) {
+            boolean removed = (key - 2) % 3 == 0;
+            assertEquals("key " + key, !removed, map.containsKey(key));
+            assertEquals("key " + key, removed ? -1L : key * 10, map.get(key, -1));
+        }
+        assertFalse(map.remove(2));
+    }
+
+    @Test
+    public void matchesAHashMapUnderRandomOperations() {
+        Random random = new Random(11);
+        LongLongHashMap map = new LongLongHashMap(8);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(512) - 64;
+            switch (random.nextInt(4)) {
+                case 0:
+                    map.put(key, i);
+                    expected.put(key, (long) i);
+                    break;
+                case 1:
+                    Long previous = expected.get(key);
+                    long value = (previous == null ? 0 : previous) + 3;
+                    assertEquals(value, map.addTo(key, 3));
+                    expected.put(key, value);
+                    break;
+                default:
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+            }
+            if (i % 1000 == 0) {
+                assertSameEntries(expected, map);
+            }
+            if (i == 150000) {
+                map.clear();
+                expected.clear();
+            }
+        }
+        assertSameEntries(expected, map);
+    }
+
+    private static void assertSameEntries(Map<Long, Long> expected, LongLongHashMap map) {
+        assertEquals(expected.size(), map.size());
+        long[] keys = new long[map.size()];
+        long[] values = new long[map.size()];
+        assertEquals(expected.size(), map.copyTo(keys, values));
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("key " + keys[i], expected.get(keys[i]), Long.valueOf(values[i]));
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), map.get(entry.getKey(), Long.MIN_VALUE));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopKHolderTest {
+
+    @Test
+    public void keepsTheLargestCountsWhenFull() {
+        TopKHolder holder = new TopKHolder(3);
+        for (long value = 1; value <= 10; value++) {
+            holder.addToTopKList(value, value * 10);
+            assertInvariants(holder);
+        }
+        assertEquals(3, holder.size());
+        assertEquals(80L, holder.getMinCount());
+        assertEquals(80L + 90L + 100L, holder.getTotal());
+
+        Map<Long, Long> topK = holder.getTopK(3);
+        Iterator<Map.Entry<Long, Long>> entries = topK.entrySet().iterator();
+        assertEquals(Long.valueOf(10), entries.next().getKey());
+        assertEquals(Long.valueOf(9), entries.next().getKey());
+        assertEquals(Long.valueOf(8), entries.next().getKey());
+    }
+
+    @Test
+    public void doesNotEvictForACountNotAboveTheMinimum() {
+        TopKHolder holder = new TopKHolder(2);
+        holder.addToTopKList(1, 5);
+        holder.addToTopKList(2, 7);
+        holder.addToTopKList(3, 5);
+        assertFalse(holder.contains(3));
+        assertTrue(holder.contains(1));
+        assertEquals(12L, holder.getTotal());
+    }
+
+    @Test
+    public void updatesHeldValuesUpAndDown() {
+        TopKHolder holder = new TopKHolder(4);
+        holder.addToTopKList(1, 10);
+        holder.addToTopKList(2, 20);
+        holder.addToTopKList(3, 30);
+        holder.addToTopKList(4, 40);
+        holder.addToTopKList(4, 5);
+        assertInvariants(holder);
+        assertEquals(5L, holder.getMinCount());
+        holder.addToTopKList(4, 50);
+        holder.addToTopKList(1, 60);
+        assertInvariants(holder);
+        assertEquals(20L, holder.getMinCount());
+        assertEquals(160L, holder.getTotal());
+        assertEquals(Long.valueOf(1), holder.getTopK(1).keySet().iterator().next());
+    }
+
+    @Test
+    public void holdsHeapAndIndexInvariantsUnderRandomUpdates() {
+        Random random = new Random(42);
+        TopKHolder holder = new TopKHolder(16);
+        for (int i = 0; i < 20000; i++) {
+            holder.addToTopKList(random.nextInt(64) - 8, random.nextInt(1000));
+            if (i % 97 == 0) {
+                assertInvariants(holder);
+            }
+            if (i % 5000 == 4999) {
+                holder.clear();
+                assertEquals(0, holder.size());
+                assertEquals(0L, holder.getTotal());
+            }
+        }
+        assertInvariants(holder);
+    }
+
+    @Test
+    public void getTopKIsSortedByCountDescending() {
+        Random random = new Random(7);
+        TopKHolder holder = new TopKHolder(50);
+        for (int i = 0; i < 1000; i++) {
+            holder.addToTopKList(random.nextInt(200), random.nextInt(10000));
+        }
+        long previous = Long.MAX_VALUE;
+        for (long count : holder.getTopK(20).values()) {
+            assertTrue(count <= previous);
+            previous = count;
+        }
+        assertEquals(20, holder.getTopK(20).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANonPositiveCapacity() {
+        new TopKHolder(0);
+    }
+
+    /**
+     * The counts are a min-heap, every held value is indexed at its heap position, and the total is their sum
+     */
+    private static void assertInvariants(TopKHolder holder) {
+        long[] values = new long[holder.size()];
+        long[] counts = new long[holder.size()];
+        int size = holder.copyTo(values, counts);
+        long total = 0;
+        Map<Long, Integer> positions = new HashMap<Long, Integer>();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                assertTrue("heap order at " + i, counts[(i - 1) >>> 1] <= counts[i]);
+            }
+            assertEquals("position of " + values[i], i, holder.positions.get(values[i], -1));
+            assertFalse("duplicate " + values[i], positions.containsKey(values[i]));
+            positions.put(values[i], i);
+            total += counts[i];
+        }
+        assertEquals(size, holder.positions.size());
+        assertEquals(total, holder.getTotal());
+        assertTrue(size <= holder.getCapacity());
+        if (size > 0 && size == holder.getCapacity()) {
+            assertEquals(counts[0], holder.getMinCount());
+        }
+        for (Long value : positions.keySet()) {
+            assertTrue(holder.contains(value));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopKPayloadTest {
+
+    @Test
+    public void roundTripsResultsSortedByUserId() {
+        Map<Long, Long> topK = new HashMap<Long, Long>();
+        topK.put(42L, 7L);
+        topK.put(3L, 100L);
+        topK.put(1000000L, 1L);
+        TopKPayload payload = TopKPayload.fromByteArray(TopKPayload.of(topK).toByteArray());
+
+        assertEquals(3, payload.size());
+        assertEquals(3L, payload.getUserId(0));
+        assertEquals(100L, payload.getCount(0));
+        assertEquals(42L, payload.getUserId(1));
+        assertEquals(7L, payload.getCount(1));
+        assertEquals(1000000L, payload.getUserId(2));
+        assertEquals(1L, payload.getCount(2));
+    }
+
+    @Test
+    public void roundTripsNegativeAndExtremeUserIds() {
+        Map<Long, Long> topK = new HashMap<Long, Long>();
+        topK.put(Long.MIN_VALUE, 1L);
+        topK.put(-1L, 2L);
+        topK.put(0L, 3L);
+        topK.put(Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(topK, toMap(TopKPayload.fromByteArray(TopKPayload.of(topK).toByteArray())));
+    }
+
+    @Test
+    public void roundTripsRandomResults() {
+        Random random = new Random(17);
+        for (int round = 0; round < 50; round++) {
+            Map<Long, Long> topK = new HashMap<Long, Long>();
+            int size = random.nextInt(200);
+            for (int i = 0; i < size; i++) {
+                topK.put(random.nextLong() >> random.nextInt(64), (long) random.nextInt(Integer.MAX_VALUE));
+            }
+            TopKPayload payload = TopKPayload.fromByteArray(TopKPayload.of(topK).toByteArray());
+            assertEquals(topK, toMap(payload));
+            for (int i = 1; i < payload.size(); i++) {
+                assertTrue(payload.getUserId(i - 1) < payload.getUserId(i));
+            }
+        }
+    }
+
+    @Test
+    public void closeUserIdsTakeFewBytes() {
+        Map<Long, Long> topK = new HashMap<Long, Long>();
+        for (long userId = 1000000; userId < 1000100; userId++) {
+            topK.put(userId, 5L);
+        }
+        // size, first user id, 99 one byte deltas and 100 one byte counts
+        assertEquals(1 + 3 + 99 + 100, TopKPayload.of(topK).toByteArray().length);
+    }
+
+    @Test
+    public void emptyResultsRoundTrip() {
+        assertEquals(0, TopKPayload.fromByteArray(TopKPayload.of(new HashMap<Long, Long>()).toByteArray()).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATruncatedPayload() {
+        Map<Long, Long> topK = new HashMap<Long, Long>();
+        topK.put(1L, 1L);
+        topK.put(2L, 1L);
+        byte[] data = TopKPayload.of(topK).toByteArray();
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        TopKPayload.fromByteArray(truncated);
+    }
+
+    private static Map<Long, Long> toMap(TopKPayload payload) {
+        Map<Long, Long> results = new HashMap<Long, Long>();
+        for (int i = 0; i < payload.size(); i++) {
+            results.put(payload.getUserId(i), payload.getCount(i));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,74 @@
+package gr.tuc.dkap.cms.storm.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class VarIntsTest {
+
+    private static final long[] VALUES = {0, 1, 63, 64, 127, 128, 255, 16383, 16384, Integer.MAX_VALUE,
+            1L << 35, Long.MAX_VALUE, -1, -64, -65, Integer.MIN_VALUE, Long.MIN_VALUE};
+
+    @Test
+    public void unsignedValuesRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : VALUES) {
+            VarInts.writeUnsigned(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : VALUES) {
+            assertEquals(value, VarInts.readUnsigned(in));
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void signedValuesRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : VALUES) {
+            VarInts.writeSigned(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : VALUES) {
+            assertEquals(value, VarInts.readSigned(in));
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void smallValuesTakeFewBytes() throws IOException {
+        assertEquals(1, unsignedLength(127));
+        assertEquals(2, unsignedLength(128));
+        assertEquals(10, unsignedLength(-1));
+        assertEquals(1, signedLength(-64));
+        assertEquals(2, signedLength(64));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAValueLongerThanTenBytes() throws IOException {
+        byte[] data = new byte[11];
+        Arrays.fill(data, (byte) 0x80);
+        VarInts.readUnsigned(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static int unsignedLength(long value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VarInts.writeUnsigned(new DataOutputStream(bytes), value);
+        return bytes.size();
+    }
+
+    private static int signedLength(long value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VarInts.writeSigned(new DataOutputStream(bytes), value);
+        return bytes.size();
+    }
+}